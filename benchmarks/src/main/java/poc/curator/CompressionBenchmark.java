@@ -0,0 +1,78 @@
+package poc.curator;
+
+import org.apache.curator.test.TestingServer;
+import org.apache.curator.utils.CloseableUtils;
+import org.apache.curator.utils.ZKPaths;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * setData/getData round-trips of a JSON config with and without compression, plus the codec on its own. The
+ * znode size of each variant is printed once per fork.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CompressionBenchmark {
+
+  private static final String PATH = "bench/compressed";
+
+  @Param({"4096", "262144"})
+  private int payloadSize;
+
+  @Param({"false", "true"})
+  private boolean compress;
+
+  private TestingServer server;
+  private ZooKeeperRecipes recipes;
+  private String payload;
+  private byte[] plain;
+
+  @Setup
+  public void setup() throws Exception {
+    server = new TestingServer();
+    recipes = new ZooKeeperRecipes(server.getConnectString());
+    recipes.start();
+    if (compress) {
+      recipes.enableCompression(256);
+    }
+    final StringBuilder json = new StringBuilder("{");
+    for (int i = 0; json.length() < payloadSize; i++) {
+      json.append("\"service.").append(i % 50).append(".timeout\": ").append(1000 + i * 7 % 5000).append(", ");
+    }
+    payload = json.append('}').toString();
+    recipes.setData(PATH, payload);
+    plain = payload.getBytes("UTF-8");
+    final int stored = recipes.getCuratorClient().getData()
+        .forPath(ZKPaths.makePath(Config.CONFIG_PATH, PATH)).length;
+    System.out.println("payload " + plain.length + " bytes, compress=" + compress + " znode size: " + stored
+        + " bytes");
+  }
+
+  @TearDown
+  public void tearDown() {
+    recipes.close();
+    CloseableUtils.closeQuietly(server);
+  }
+
+  @Benchmark
+  public void setData() {
+    recipes.setData(PATH, payload);
+  }
+
+  @Benchmark
+  public String getData() {
+    return recipes.getData(PATH);
+  }
+
+  @Benchmark
+  @BenchmarkMode(Mode.AverageTime)
+  @OutputTimeUnit(TimeUnit.MICROSECONDS)
+  public byte[] codec() {
+    return compress ? PayloadCodec.decompress(PayloadCodec.compress(plain, 0)) : plain;
+  }
+}
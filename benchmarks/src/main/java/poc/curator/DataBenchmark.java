@@ -0,0 +1,62 @@
+package poc.curator;
+
+import org.apache.curator.test.TestingServer;
+import org.apache.curator.utils.CloseableUtils;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * setData/getData round-trips through the facade for small and larger payloads.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DataBenchmark {
+
+  private static final String PATH = "bench/data";
+
+  @Param({"16", "4096"})
+  private int payloadSize;
+
+  private TestingServer server;
+  private ZooKeeperRecipes recipes;
+  private String payload;
+
+  @Setup
+  public void setup() throws Exception {
+    server = new TestingServer();
+    recipes = new ZooKeeperRecipes(server.getConnectString());
+    recipes.start();
+    final char[] chars = new char[payloadSize];
+    Arrays.fill(chars, 'x');
+    payload = new String(chars);
+    recipes.setData(PATH, payload);
+  }
+
+  @TearDown
+  public void tearDown() {
+    recipes.close();
+    CloseableUtils.closeQuietly(server);
+  }
+
+  @Benchmark
+  public void setData() {
+    recipes.setData(PATH, payload);
+  }
+
+  @Benchmark
+  public String getData() {
+    return recipes.getData(PATH);
+  }
+
+  @Benchmark
+  public String setAndGetData() {
+    recipes.setData(PATH, payload);
+    return recipes.getData(PATH);
+  }
+}
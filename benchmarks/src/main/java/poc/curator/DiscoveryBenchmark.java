@@ -0,0 +1,72 @@
+package poc.curator;
+
+import org.apache.curator.test.TestingServer;
+import org.apache.curator.utils.CloseableUtils;
+import org.apache.curator.x.discovery.ServiceInstance;
+import org.openjdk.jmh.annotations.*;
+import poc.curator.services.MyService;
+import poc.curator.services.ServiceDescriptor;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput and latency of discover/discoverAll/discoverAllParallel against an in-process ZooKeeper holding the
+ * given number of services, one instance each, so discoverAll has a query per service to make.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DiscoveryBenchmark {
+
+  @Param({"10", "100", "1000"})
+  private int services;
+
+  private TestingServer server;
+  private ZooKeeperRecipes recipes;
+
+  @Setup
+  public void setup() throws Exception {
+    server = new TestingServer();
+    recipes = new ZooKeeperRecipes(server.getConnectString());
+    recipes.start();
+    final List<ServiceInstance<MyService>> instances = new ArrayList<>();
+    for (int i = 0; i < services; i++) {
+      final String name = serviceName(i);
+      final ServiceDescriptor service = ServiceDescriptor.builder(name).version("v1")
+          .uri("/myservices/" + name).env("ENV", "PRODUCTION").build();
+      instances.add(recipes.newServiceInstance(name, 10000 + i, service));
+    }
+    recipes.registerServices(instances);
+  }
+
+  private static String serviceName(int i) {
+    return i == 0 ? MyService.ORDERS_SERVICE : "Service" + i;
+  }
+
+  @TearDown
+  public void tearDown() {
+    recipes.close();
+    CloseableUtils.closeQuietly(server);
+  }
+
+  @Benchmark
+  public Collection<ServiceInstance<MyService>> discover() throws Exception {
+    return recipes.discover(MyService.ORDERS_SERVICE);
+  }
+
+  @Benchmark
+  public List<ServiceInstance<MyService>> discoverAll() throws Exception {
+    return recipes.discoverAll();
+  }
+
+  @Benchmark
+  public List<ServiceInstance<MyService>> discoverAllParallel() throws Exception {
+    return recipes.discoverAllParallel();
+  }
+}
@@ -0,0 +1,55 @@
+package poc.curator;
+
+import org.apache.curator.x.discovery.ServiceInstance;
+import org.apache.curator.x.discovery.UriSpec;
+import org.apache.curator.x.discovery.details.InstanceSerializer;
+import org.apache.curator.x.discovery.details.JsonInstanceSerializer;
+import org.openjdk.jmh.annotations.*;
+import poc.curator.services.MyService;
+import poc.curator.services.ServiceDescriptor;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encode and decode cost of a registered instance in JSON and in the binary format. The znode size of each
+ * format is printed once per fork.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SerializerBenchmark {
+
+  @Param({"json", "binary"})
+  private String format;
+
+  private InstanceSerializer<MyService> serializer;
+  private ServiceInstance<MyService> instance;
+  private byte[] bytes;
+
+  @Setup
+  public void setup() throws Exception {
+    serializer = "binary".equals(format) ? new BinaryInstanceSerializer() : new JsonInstanceSerializer<>(MyService.class);
+    instance = ServiceInstance.<MyService>builder().name(MyService.ORDERS_SERVICE)
+        .uriSpec(new UriSpec("{scheme}://{address}:{port}"))
+        .address("10.0.0.1")
+        .port(2000)
+        .payload(ServiceDescriptor.builder(MyService.ORDERS_SERVICE).version("v1").uri("/myservices/orders")
+            .env("ENV", "PRODUCTION").env("ENV2", "HELLO").build())
+        .build();
+    bytes = serializer.serialize(instance);
+    System.out.println(format + " znode size: " + bytes.length + " bytes");
+  }
+
+  @Benchmark
+  public byte[] serialize() throws Exception {
+    return serializer.serialize(instance);
+  }
+
+  @Benchmark
+  public ServiceInstance<MyService> deserialize() throws Exception {
+    return serializer.deserialize(bytes);
+  }
+}
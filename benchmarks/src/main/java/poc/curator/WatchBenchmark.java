@@ -0,0 +1,86 @@
+package poc.curator;
+
+import org.apache.curator.framework.recipes.cache.ChildData;
+import org.apache.curator.test.TestingServer;
+import org.apache.curator.utils.CloseableUtils;
+import org.apache.curator.utils.ZKPaths;
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time from setData until a watch listener sees the new value, for a CacheRecipe node watch and a
+ * PathWatcherRecipe tree watch.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class WatchBenchmark {
+
+  private static final String PATH = "bench/watch";
+
+  @Param({"cache", "tree"})
+  private String watch;
+
+  private TestingServer server;
+  private ZooKeeperRecipes recipes;
+  private long sequence;
+  // last value seen by the listener
+  private volatile long seen;
+
+  @Setup
+  public void setup() throws Exception {
+    server = new TestingServer();
+    recipes = new ZooKeeperRecipes(server.getConnectString());
+    recipes.start();
+    recipes.setData(PATH, "0");
+    if (watch.equals("cache")) {
+      recipes.addDataWatch(PATH, (path, data, stat) -> {
+        if (data != null) {
+          seen = Long.parseLong(StandardCharsets.UTF_8.decode(data).toString());
+        }
+      });
+    } else {
+      final PathWatcherRecipe watcher = recipes.getPathWatcher();
+      watcher.setLeanDispatch(true);
+      final String fullPath = ZKPaths.makePath(Config.CONFIG_PATH, PATH);
+      watcher.addTreeWatch(fullPath, new PathWatcherRecipe.RawPathListener() {
+        @Override
+        public void nodeAdded(ChildData data) {
+          nodeUpdated(data);
+        }
+
+        @Override
+        public void nodeDeleted(ChildData data) {
+        }
+
+        @Override
+        public void nodeUpdated(ChildData data) {
+          if (data.getPath().equals(fullPath)) {
+            seen = Long.parseLong(PathWatcherRecipe.decode(data));
+          }
+        }
+      });
+    }
+  }
+
+  @TearDown
+  public void tearDown() {
+    recipes.close();
+    CloseableUtils.closeQuietly(server);
+  }
+
+  @Benchmark
+  public long deliver() {
+    final long target = ++sequence;
+    recipes.setData(PATH, Long.toString(target));
+    while (seen < target) {
+      Thread.yield();
+    }
+    return seen;
+  }
+}
@@ -0,0 +1,34 @@
+package poc.curator;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Outcome of a batch of ZooKeeper writes sent as one multi op: how many znodes it touched and how long it took.
+ */
+public final class BatchResult {
+
+  private final int count;
+  private final long elapsedNanos;
+
+  public BatchResult(int count, long elapsedNanos) {
+    this.count = count;
+    this.elapsedNanos = elapsedNanos;
+  }
+
+  public int getCount() {
+    return count;
+  }
+
+  public long getElapsedNanos() {
+    return elapsedNanos;
+  }
+
+  public long getElapsedMillis() {
+    return TimeUnit.NANOSECONDS.toMillis(elapsedNanos);
+  }
+
+  @Override
+  public String toString() {
+    return count + " znode(s) in " + getElapsedMillis() + " ms";
+  }
+}
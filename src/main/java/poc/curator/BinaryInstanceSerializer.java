@@ -0,0 +1,353 @@
+package poc.curator;
+
+import org.apache.curator.x.discovery.ServiceInstance;
+import org.apache.curator.x.discovery.ServiceType;
+import org.apache.curator.x.discovery.UriSpec;
+import org.apache.curator.x.discovery.details.InstanceSerializer;
+import org.apache.curator.x.discovery.details.JsonInstanceSerializer;
+import poc.curator.services.MyService;
+import poc.curator.services.OrdersService;
+import poc.curator.services.PaymentService;
+import poc.curator.services.ServiceDescriptor;
+
+import java.io.IOException;
+import java.lang.reflect.Constructor;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Compact binary alternative to {@link JsonInstanceSerializer} for {@link MyService} instances.
+ *
+ * An instance is written as a magic byte, a format version and then its fields, strings as their UTF-8 length
+ * followed by the bytes. The payload is read back as a {@link ServiceDescriptor} with the written fields. Only the
+ * classes given as stateless, whose instances all carry the same fixed fields, are read back as an instance of their
+ * own class, and only if its fields match the written ones.
+ * The payload bytes of a descriptor, and those of each stateless class, are encoded once and copied on every later
+ * serialize; any other payload is encoded again every time. Data that does not start with the magic byte is read as JSON, so instances registered by older clients are still discovered
+ * during a rolling upgrade. Every thread encodes into its own reusable buffer.
+ */
+public final class BinaryInstanceSerializer implements InstanceSerializer<MyService> {
+
+  // JSON always starts with '{', so this can never be mistaken for it.
+  static final byte MAGIC = (byte) 0xB1;
+  static final byte VERSION = 1;
+
+  private static final int INITIAL_BUFFER = 256;
+
+  private static final ThreadLocal<Encoder> ENCODER = ThreadLocal.withInitial(Encoder::new);
+
+  private final JsonInstanceSerializer<MyService> json = new JsonInstanceSerializer<>(MyService.class);
+  // stateless payload class name to its no-arg constructor.
+  private final Map<String, Constructor<? extends MyService>> statelessPayloads = new HashMap<>();
+  // stateless payload class to the descriptor of its fixed fields, so they are encoded only once.
+  private final ConcurrentMap<Class<?>, ServiceDescriptor> statelessDescriptors = new ConcurrentHashMap<>();
+
+  /**
+   * Reads {@link OrdersService} and {@link PaymentService} back as themselves, every other payload as a
+   * {@link ServiceDescriptor}.
+   */
+  public BinaryInstanceSerializer() {
+    this(Arrays.<Class<? extends MyService>>asList(OrdersService.class, PaymentService.class));
+  }
+
+  /**
+   * @param statelessPayloads classes read back as an instance of their own class, created with their public no-arg
+   *                          constructor. Only for classes whose instances all carry the same fields; any other
+   *                          payload, e.g. a bean with setters, must be read as a {@link ServiceDescriptor} to keep
+   *                          its fields.
+   */
+  public BinaryInstanceSerializer(Collection<Class<? extends MyService>> statelessPayloads) {
+    for (Class<? extends MyService> type : statelessPayloads) {
+      try {
+        this.statelessPayloads.put(type.getName(), type.getConstructor());
+      } catch (NoSuchMethodException e) {
+        throw new IllegalArgumentException(type.getName() + " has no public no-arg constructor", e);
+      }
+    }
+  }
+
+  @Override
+  public byte[] serialize(ServiceInstance<MyService> instance) {
+    final Encoder out = ENCODER.get();
+    out.reset();
+    out.writeByte(MAGIC);
+    out.writeByte(VERSION);
+    out.writeString(instance.getName());
+    out.writeString(instance.getId());
+    out.writeString(instance.getAddress());
+    out.writeInteger(instance.getPort());
+    out.writeInteger(instance.getSslPort());
+    out.writeLong(instance.getRegistrationTimeUTC());
+    out.writeByte(serviceTypeCode(instance.getServiceType()));
+    writeUriSpec(out, instance.getUriSpec());
+    writePayload(out, instance.getPayload());
+    return out.toByteArray();
+  }
+
+  @Override
+  public ServiceInstance<MyService> deserialize(byte[] bytes) throws Exception {
+    if (bytes.length == 0 || bytes[0] != MAGIC) {
+      return json.deserialize(bytes);
+    }
+    final Decoder in = new Decoder(bytes, 1);
+    final byte version = in.readByte();
+    if (version != VERSION) {
+      throw new IOException("Unsupported instance format version " + version);
+    }
+    try {
+      final String name = in.readString();
+      final String id = in.readString();
+      final String address = in.readString();
+      final Integer port = in.readInteger();
+      final Integer sslPort = in.readInteger();
+      final long registrationTimeUTC = in.readLong();
+      final ServiceType serviceType = serviceType(in.readByte());
+      final UriSpec uriSpec = readUriSpec(in);
+      final MyService payload = readPayload(in);
+      return new ServiceInstance<>(name, id, address, port, sslPort, payload, registrationTimeUTC,
+          serviceType, uriSpec);
+    } catch (IndexOutOfBoundsException e) {
+      throw new IOException("Truncated instance data", e);
+    }
+  }
+
+  // fixed codes rather than the ordinal, so a reordered enum does not change stored instances.
+  private static byte serviceTypeCode(ServiceType serviceType) {
+    if (serviceType == null) {
+      return -1;
+    }
+    switch (serviceType) {
+      case DYNAMIC:
+        return 0;
+      case STATIC:
+        return 1;
+      case PERMANENT:
+        return 2;
+      default:
+        throw new IllegalArgumentException("No code for service type " + serviceType);
+    }
+  }
+
+  private static ServiceType serviceType(byte code) throws IOException {
+    switch (code) {
+      case -1:
+        return null;
+      case 0:
+        return ServiceType.DYNAMIC;
+      case 1:
+        return ServiceType.STATIC;
+      case 2:
+        return ServiceType.PERMANENT;
+      default:
+        throw new IOException("Unknown service type code " + code);
+    }
+  }
+
+  private static void writeUriSpec(Encoder out, UriSpec uriSpec) {
+    if (uriSpec == null) {
+      out.writeLength(-1);
+      return;
+    }
+    out.writeLength(uriSpec.getParts().size());
+    for (UriSpec.Part part : uriSpec) {
+      out.writeByte(part.isVariable() ? (byte) 1 : 0);
+      out.writeString(part.getValue());
+    }
+  }
+
+  private static UriSpec readUriSpec(Decoder in) {
+    final int parts = in.readLength();
+    if (parts < 0) {
+      return null;
+    }
+    final UriSpec uriSpec = new UriSpec();
+    for (int i = 0; i < parts; i++) {
+      final boolean variable = in.readByte() != 0;
+      uriSpec.add(new UriSpec.Part(in.readString(), variable));
+    }
+    return uriSpec;
+  }
+
+  private void writePayload(Encoder out, MyService payload) {
+    if (payload == null) {
+      out.writeString(null);
+      return;
+    }
+    out.writeString(payload.getClass().getName());
+    ServiceDescriptor descriptor = statelessDescriptors.get(payload.getClass());
+    // checked all the same, so a class given as stateless that is not still writes its own fields.
+    if (descriptor == null || !sameFields(payload, descriptor)) {
+      descriptor = ServiceDescriptor.of(payload);
+      if (statelessPayloads.containsKey(payload.getClass().getName())) {
+        statelessDescriptors.putIfAbsent(payload.getClass(), descriptor);
+      }
+    }
+    out.writeBytes(descriptor.getSerialized());
+  }
+
+  private MyService readPayload(Decoder in) throws Exception {
+    final String className = in.readString();
+    if (className == null) {
+      return null;
+    }
+    final String name = in.readString();
+    final String version = in.readString();
+    final String uri = in.readString();
+    final int size = in.readLength();
+    final ServiceDescriptor.Builder builder = ServiceDescriptor.builder(name).version(version).uri(uri);
+    for (int i = 0; i < size; i++) {
+      builder.env(in.readString(), in.readString());
+    }
+    final ServiceDescriptor descriptor = builder.build();
+    final Constructor<? extends MyService> constructor = statelessPayloads.get(className);
+    if (constructor != null) {
+      final MyService payload = constructor.newInstance();
+      // written by a version of the class with other fields, the written ones win.
+      if (sameFields(payload, descriptor)) {
+        return payload;
+      }
+    }
+    return descriptor;
+  }
+
+  private static boolean sameFields(MyService payload, ServiceDescriptor descriptor) {
+    return Objects.equals(payload.getName(), descriptor.getName())
+        && Objects.equals(payload.getVersion(), descriptor.getVersion())
+        && Objects.equals(payload.getURI(), descriptor.getURI())
+        && Objects.equals(payload.getEnvironment(), descriptor.getEnvironment());
+  }
+
+  private static final class Encoder {
+    private byte[] buffer = new byte[INITIAL_BUFFER];
+    private int position;
+
+    private void reset() {
+      position = 0;
+    }
+
+    private void ensure(int bytes) {
+      if (position + bytes > buffer.length) {
+        buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, position + bytes));
+      }
+    }
+
+    private void writeByte(int value) {
+      ensure(1);
+      buffer[position++] = (byte) value;
+    }
+
+    private void writeLong(long value) {
+      ensure(8);
+      for (int shift = 56; shift >= 0; shift -= 8) {
+        buffer[position++] = (byte) (value >>> shift);
+      }
+    }
+
+    // varint of length + 1, so that -1 (null) takes a single zero byte.
+    private void writeLength(int length) {
+      int value = length + 1;
+      ensure(5);
+      while ((value & ~0x7F) != 0) {
+        buffer[position++] = (byte) ((value & 0x7F) | 0x80);
+        value >>>= 7;
+      }
+      buffer[position++] = (byte) value;
+    }
+
+    private void writeInteger(Integer value) {
+      if (value == null) {
+        writeByte(0);
+        return;
+      }
+      writeByte(1);
+      ensure(4);
+      final int v = value;
+      buffer[position++] = (byte) (v >>> 24);
+      buffer[position++] = (byte) (v >>> 16);
+      buffer[position++] = (byte) (v >>> 8);
+      buffer[position++] = (byte) v;
+    }
+
+    private void writeBytes(ByteBuffer bytes) {
+      final int length = bytes.remaining();
+      ensure(length);
+      bytes.get(buffer, position, length);
+      position += length;
+    }
+
+    private void writeString(String value) {
+      if (value == null) {
+        writeLength(-1);
+        return;
+      }
+      final byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+      writeLength(bytes.length);
+      ensure(bytes.length);
+      System.arraycopy(bytes, 0, buffer, position, bytes.length);
+      position += bytes.length;
+    }
+
+    private byte[] toByteArray() {
+      return Arrays.copyOf(buffer, position);
+    }
+  }
+
+  private static final class Decoder {
+    private final byte[] bytes;
+    private int position;
+
+    private Decoder(byte[] bytes, int position) {
+      this.bytes = bytes;
+      this.position = position;
+    }
+
+    private byte readByte() {
+      return bytes[position++];
+    }
+
+    private long readLong() {
+      long value = 0;
+      for (int i = 0; i < 8; i++) {
+        value = (value << 8) | (bytes[position++] & 0xFF);
+      }
+      return value;
+    }
+
+    private int readLength() {
+      int value = 0;
+      int shift = 0;
+      byte b;
+      do {
+        b = bytes[position++];
+        value |= (b & 0x7F) << shift;
+        shift += 7;
+      } while ((b & 0x80) != 0);
+      return value - 1;
+    }
+
+    private Integer readInteger() {
+      if (readByte() == 0) {
+        return null;
+      }
+      return ((bytes[position++] & 0xFF) << 24) | ((bytes[position++] & 0xFF) << 16)
+          | ((bytes[position++] & 0xFF) << 8) | (bytes[position++] & 0xFF);
+    }
+
+    private String readString() {
+      final int length = readLength();
+      if (length < 0) {
+        return null;
+      }
+      final String value = new String(bytes, position, length, StandardCharsets.UTF_8);
+      position += length;
+      return value;
+    }
+  }
+}
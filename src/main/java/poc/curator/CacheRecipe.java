@@ -1,62 +1,190 @@
 package poc.curator;
 
 import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.recipes.cache.ChildData;
 import org.apache.curator.framework.recipes.cache.NodeCache;
 import org.apache.curator.framework.recipes.cache.NodeCacheListener;
 import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.data.Stat;
 
 import java.io.Closeable;
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.List;
+import java.nio.ByteBuffer;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Global cache that can be accessed by any client.
  */
 public final class CacheRecipe implements Closeable {
 
+  // mzxid used while the node does not exist.
+  private static final long NO_NODE = -1;
+
   private final CuratorFramework client;
-  private final List<NodeCache> nodeCacheList;
+  // one NodeCache per path, shared by all listeners on it.
+  private final SharedCacheRegistry<NodeCache> nodeCaches;
+  // delivers coalesced changes, created on first use.
+  private ScheduledExecutorService coalescingExecutor;
+  // counts changes per watched path when set.
+  private volatile RecipeMetrics metrics;
 
   interface CacheListener {
     void dataChanged(String newData);
   }
 
+  /**
+   * Gets the raw node data instead of a decoded String.
+   */
+  interface ByteCacheListener {
+    /**
+     * @param data read-only view of the node data, null if the node was deleted.
+     * @param stat stat of the node the data belongs to, null if the node was deleted.
+     */
+    void dataChanged(String path, ByteBuffer data, Stat stat);
+  }
+
   public CacheRecipe(CuratorFramework client) {
     this.client = client;
-    nodeCacheList = new ArrayList<>();
+    nodeCaches = new SharedCacheRegistry<>((path, initialized) -> {
+      final NodeCache cache = new NodeCache(client, path);
+      cache.getListenable().addListener(() -> {
+        final RecipeMetrics m = metrics;
+        if (m != null) {
+          m.watchEvent(path);
+        }
+      });
+      return cache;
+    }, NodeCache::start);
+  }
+
+  public void setMetrics(RecipeMetrics metrics) {
+    this.metrics = metrics;
   }
 
   public NodeCache addNodeCacheWatch(String path, CacheListener listener) throws Exception {
-    final NodeCache cache = new NodeCache(client, path);
-    cache.getListenable().addListener(new MyNodeCacheListener(cache, listener));
-    cache.start();
-    nodeCacheList.add(cache);
+    return addNodeCacheWatch(path, decoding(listener));
+  }
+
+  /**
+   * Adds a listener that stays until this object is closed. The returned cache is shared with the other listeners
+   * on the same path, do not close it.
+   */
+  public NodeCache addNodeCacheWatch(String path, ByteCacheListener listener) throws Exception {
+    subscribe(path, listener);
     System.out.println("Added watch for " + path);
-    return cache;
+    return nodeCaches.get(path);
+  }
+
+  public WatchHandle subscribe(String path, CacheListener listener) throws Exception {
+    return subscribe(path, decoding(listener));
+  }
+
+  /**
+   * Adds a listener to the shared cache for the given path. A listener joining a cache that already holds data is
+   * called with it right away. Close the handle to remove the listener again.
+   */
+  public WatchHandle subscribe(String path, ByteCacheListener listener) throws Exception {
+    final MyNodeCacheListener[] added = new MyNodeCacheListener[1];
+    nodeCaches.acquire(path, cache -> {
+      added[0] = new MyNodeCacheListener(cache, path, listener);
+      cache.getListenable().addListener(added[0]);
+    });
+    // no-op unless the cache already has data this listener has not seen.
+    added[0].nodeChanged();
+    return new WatchHandle(path, () -> {
+      final NodeCache cache = nodeCaches.get(path);
+      if (cache != null) {
+        cache.getListenable().removeListener(added[0]);
+      }
+      nodeCaches.release(path);
+    });
+  }
+
+  /**
+   * @return the number of listeners currently sharing the cache for the given path.
+   */
+  public int subscribers(String path) {
+    return nodeCaches.subscribers(path);
+  }
+
+  /**
+   * Same as {@link #addNodeCacheWatch(String, CacheListener)}, but a burst of changes is reported once with the
+   * latest data, see {@link CoalescingCacheListener}. Only the delivered data gets decoded.
+   *
+   * @param debounce   quiet time after a change before it is delivered.
+   * @param maxLatency longest time a change may wait while changes keep coming.
+   */
+  public NodeCache addNodeCacheWatch(String path, CacheListener listener, long debounce, long maxLatency,
+                                     TimeUnit unit) throws Exception {
+    return addNodeCacheWatch(path, decoding(listener), debounce, maxLatency, unit);
+  }
+
+  public NodeCache addNodeCacheWatch(String path, ByteCacheListener listener, long debounce, long maxLatency,
+                                     TimeUnit unit) throws Exception {
+    return addNodeCacheWatch(path,
+        new CoalescingCacheListener(listener, getCoalescingExecutor(), debounce, maxLatency, unit));
+  }
+
+  private synchronized ScheduledExecutorService getCoalescingExecutor() {
+    if (coalescingExecutor == null) {
+      coalescingExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+        final Thread thread = new Thread(r, "CacheRecipe-coalescer");
+        thread.setDaemon(true);
+        return thread;
+      });
+    }
+    return coalescingExecutor;
   }
 
   public void close() throws IOException {
-    for (NodeCache cache : nodeCacheList) {
-      cache.close();
+    nodeCaches.close();
+    synchronized (this) {
+      if (coalescingExecutor != null) {
+        coalescingExecutor.shutdownNow();
+      }
     }
   }
 
+  // The legacy String path: decompress if needed, decode as UTF-8 and log.
+  private static ByteCacheListener decoding(final CacheListener listener) {
+    return (path, data, stat) -> {
+      final String newData = PayloadCodec.decode(data);
+      System.out.println("Cache changed: " + newData);
+      listener.dataChanged(newData);
+    };
+  }
+
   final class MyNodeCacheListener implements NodeCacheListener {
 
-    private NodeCache nodeCache;
-    private CacheListener listener;
+    private final NodeCache nodeCache;
+    private final String path;
+    private final ByteCacheListener listener;
+    private long lastMzxid = NO_NODE;
 
-    public MyNodeCacheListener(NodeCache cache, CacheListener listener) {
+    public MyNodeCacheListener(NodeCache cache, String path, ByteCacheListener listener) {
       nodeCache = cache;
+      this.path = path;
       this.listener = listener;
     }
 
+    // called by NodeCache and once by subscribe, possibly at the same time.
     @Override
-    public void nodeChanged() throws Exception {
-      String data = new String(nodeCache.getCurrentData().getData());
-      System.out.println("Cache changed: " + data);
-      listener.dataChanged(data);
+    public synchronized void nodeChanged() throws Exception {
+      final ChildData current = nodeCache.getCurrentData();
+      final long mzxid = current != null ? current.getStat().getMzxid() : NO_NODE;
+      // NodeCache also calls back after re-reading unchanged data, e.g. on reconnect.
+      if (mzxid == lastMzxid) {
+        return;
+      }
+      lastMzxid = mzxid;
+      if (current == null) {
+        listener.dataChanged(path, null, null);
+      } else {
+        final byte[] data = current.getData() != null ? current.getData() : new byte[0];
+        listener.dataChanged(path, ByteBuffer.wrap(data).asReadOnlyBuffer(), current.getStat());
+      }
     }
   }
 }
@@ -0,0 +1,80 @@
+package poc.curator;
+
+import org.apache.zookeeper.data.Stat;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Collapses a burst of changes to one node into a single call with the latest data.
+ *
+ * Each change pushes delivery out to the end of the debounce window, but never further than max latency
+ * after the first change that has not been delivered yet, so a node written continuously is still reported
+ * regularly. Delivery happens on the given executor, never on the Curator event thread.
+ */
+final class CoalescingCacheListener implements CacheRecipe.ByteCacheListener {
+
+  private final CacheRecipe.ByteCacheListener listener;
+  private final ScheduledExecutorService executor;
+  private final long debounceNanos;
+  private final long maxLatencyNanos;
+
+  // latest undelivered change. Guarded by this.
+  private boolean pending;
+  private long firstPendingAt;
+  private String path;
+  private ByteBuffer data;
+  private Stat stat;
+  private ScheduledFuture<?> delivery;
+
+  CoalescingCacheListener(CacheRecipe.ByteCacheListener listener, ScheduledExecutorService executor,
+                          long debounce, long maxLatency, TimeUnit unit) {
+    this.listener = listener;
+    this.executor = executor;
+    this.debounceNanos = unit.toNanos(debounce);
+    this.maxLatencyNanos = Math.max(debounceNanos, unit.toNanos(maxLatency));
+  }
+
+  @Override
+  public synchronized void dataChanged(String path, ByteBuffer data, Stat stat) {
+    final long now = System.nanoTime();
+    if (!pending) {
+      pending = true;
+      firstPendingAt = now;
+    }
+    this.path = path;
+    this.data = data;
+    this.stat = stat;
+    if (delivery != null) {
+      delivery.cancel(false);
+    }
+    final long delay = Math.max(0, Math.min(debounceNanos, firstPendingAt + maxLatencyNanos - now));
+    delivery = executor.schedule(this::deliver, delay, TimeUnit.NANOSECONDS);
+  }
+
+  private void deliver() {
+    final String latestPath;
+    final ByteBuffer latestData;
+    final Stat latestStat;
+    synchronized (this) {
+      if (!pending) {
+        return;
+      }
+      pending = false;
+      delivery = null;
+      latestPath = path;
+      latestData = data;
+      latestStat = stat;
+      data = null;
+      stat = null;
+    }
+    try {
+      listener.dataChanged(latestPath, latestData, latestStat);
+    } catch (Exception e) {
+      // keep the executor alive for the other watches.
+      e.printStackTrace();
+    }
+  }
+}
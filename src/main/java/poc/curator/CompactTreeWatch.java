@@ -0,0 +1,595 @@
+package poc.curator;
+
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.api.CuratorEvent;
+import org.apache.curator.framework.state.ConnectionState;
+import org.apache.curator.framework.state.ConnectionStateListener;
+import org.apache.curator.utils.ZKPaths;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.Watcher;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Tree watch that keeps a compact copy of the tree instead of a TreeCache full of ChildData.
+ *
+ * It sets the data and child watches itself, the way TreeCache does, but the answers go straight into its own
+ * copy of the tree: paths are stored as a trie of interned segments and payloads as (reference, length) pairs into
+ * a {@link PayloadArena} of off-heap slabs, so a tree with a few hundred thousand nodes no longer costs a byte[],
+ * a Stat and a full path String per node on the heap. What is left per node is the trie node and the watches the
+ * ZooKeeper client registers, which any watch on the node costs. Segments are shared between nodes, so this pays
+ * off for trees that repeat the same names, e.g. the same keys under many groups. Listeners get the same
+ * add/update/delete callbacks as with {@link PathWatcherRecipe#addTreeWatch(String, PathWatcherRecipe.PathListener)},
+ * a delete also carries the last known data.
+ */
+public final class CompactTreeWatch implements Closeable {
+
+  /** Default slab size for the payload arena. */
+  public static final int DEFAULT_SLAB_SIZE = 1024 * 1024;
+
+  // rough per-object sizes on a 64 bit JVM with compressed oops, used for the memory report.
+  private static final int TRIE_NODE_BYTES = 48;
+  private static final int SEGMENT_BYTES = 24;
+  private static final int MAP_ENTRY_BYTES = 48;
+  private static final int STRING_BYTES = 56;
+  private static final int TREE_CACHE_NODE_BYTES = 64 + MAP_ENTRY_BYTES;
+  private static final int CHILD_DATA_BYTES = 24;
+  private static final int STAT_BYTES = 80;
+  private static final int BYTE_ARRAY_BYTES = 16;
+  // the ZooKeeper client keeps a data and a child watch per node, each a map entry with a one element HashSet,
+  // keyed by the path.
+  private static final int WATCH_BYTES = 2 * (MAP_ENTRY_BYTES + 176) + STRING_BYTES;
+
+  private final CuratorFramework client;
+  private final String rootPath;
+  private final PathWatcherRecipe.PathListener listener;
+  private final int slabSize;
+  private final Watcher watcher = this::process;
+  private final ConnectionStateListener connectionStateListener = (c, newState) -> {
+    if (newState == ConnectionState.RECONNECTED) {
+      // watches of a lost session are gone, read everything again.
+      refreshAll();
+    }
+  };
+  private volatile boolean closed;
+
+  private final ReadWriteLock lock = new ReentrantReadWriteLock();
+  // guarded by lock
+  private final Node root = new Node("");
+  private final Map<String, Segment> segments = new HashMap<>();
+  private PayloadArena arena;
+  private int nodes;
+  private long pathChars;
+
+  // a name shared by the trie nodes, dropped with the last of them.
+  private static final class Segment {
+    private final String name;
+    private int nodes;
+
+    private Segment(String name) {
+      this.name = name;
+    }
+  }
+
+  private static final class Node {
+    private final String name;
+    private Map<String, Node> children;
+    // false until the first read of a node seen in its parent's children, and for a missing root.
+    private boolean present;
+    private long ref = PayloadArena.NO_DATA;
+    private int length;
+    // of the data held, so a re-read of unchanged data is not reported.
+    private long mzxid;
+
+    private Node(String name) {
+      this.name = name;
+    }
+  }
+
+  /**
+   * Memory taken by this watch compared to what a TreeCache holding the same tree would take. Both include the
+   * watches the ZooKeeper client keeps for every node. The payload and arena figures are exact, the heap figures are
+   * estimates from fixed per-object sizes of a 64 bit JVM with compressed oops, not measured.
+   */
+  public static final class MemoryReport {
+    private final int nodes;
+    private final int segments;
+    private final long payloadBytes;
+    private final long arenaCapacity;
+    private final long arenaWasted;
+    private final long heapBytes;
+    private final long treeCacheBytes;
+
+    private MemoryReport(int nodes, int segments, long payloadBytes, long arenaCapacity, long arenaWasted,
+                         long heapBytes, long treeCacheBytes) {
+      this.nodes = nodes;
+      this.segments = segments;
+      this.payloadBytes = payloadBytes;
+      this.arenaCapacity = arenaCapacity;
+      this.arenaWasted = arenaWasted;
+      this.heapBytes = heapBytes;
+      this.treeCacheBytes = treeCacheBytes;
+    }
+
+    public int getNodes() {
+      return nodes;
+    }
+
+    /** Distinct node names held, each shared by all the nodes that have it. */
+    public int getSegments() {
+      return segments;
+    }
+
+    public long getPayloadBytes() {
+      return payloadBytes;
+    }
+
+    /** Off-heap bytes reserved for payloads. */
+    public long getArenaCapacity() {
+      return arenaCapacity;
+    }
+
+    public long getArenaWasted() {
+      return arenaWasted;
+    }
+
+    /** Estimated heap taken by the trie and the watches. */
+    public long getHeapBytes() {
+      return heapBytes;
+    }
+
+    /** Estimated heap a TreeCache with data and its watches would take for the same tree. */
+    public long getTreeCacheBytes() {
+      return treeCacheBytes;
+    }
+
+    @Override
+    public String toString() {
+      return nodes + " nodes, " + segments + " names, " + payloadBytes + " payload bytes: compact heap~" + heapBytes
+          + " (estimate) off-heap=" + arenaCapacity + " (wasted " + arenaWasted + "), TreeCache heap~"
+          + treeCacheBytes + " (estimate)";
+    }
+  }
+
+  public CompactTreeWatch(CuratorFramework client, String path, PathWatcherRecipe.PathListener listener) {
+    this(client, path, listener, DEFAULT_SLAB_SIZE);
+  }
+
+  /**
+   * @param listener gets the changes, may be null to only use the lookups.
+   */
+  public CompactTreeWatch(CuratorFramework client, String path, PathWatcherRecipe.PathListener listener, int slabSize) {
+    this.client = client;
+    this.rootPath = path;
+    this.listener = listener;
+    this.slabSize = slabSize;
+    this.arena = new PayloadArena(slabSize);
+  }
+
+  public void start() throws Exception {
+    lock.writeLock().lock();
+    try {
+      find(rootPath, true);
+    } finally {
+      lock.writeLock().unlock();
+    }
+    client.getConnectionStateListenable().addListener(connectionStateListener);
+    refresh(rootPath);
+  }
+
+  private void process(WatchedEvent event) {
+    if (closed || event.getPath() == null) {
+      return;
+    }
+    switch (event.getType()) {
+      case NodeCreated:
+        refresh(event.getPath());
+        break;
+      case NodeDataChanged:
+        readData(event.getPath());
+        break;
+      case NodeChildrenChanged:
+        readChildren(event.getPath());
+        break;
+      case NodeDeleted:
+        deleted(event.getPath());
+        if (event.getPath().equals(rootPath)) {
+          watchRootCreation();
+        }
+        break;
+      default:
+        break;
+    }
+  }
+
+  private void refresh(String path) {
+    readData(path);
+    readChildren(path);
+  }
+
+  private void refreshAll() {
+    final List<String> paths = new ArrayList<>();
+    lock.readLock().lock();
+    try {
+      final Node node = find(rootPath, false);
+      if (node != null) {
+        collect(node, rootPath, paths);
+      }
+    } finally {
+      lock.readLock().unlock();
+    }
+    for (String path : paths) {
+      refresh(path);
+    }
+  }
+
+  private static void collect(Node node, String path, List<String> paths) {
+    paths.add(path);
+    if (node.children != null) {
+      for (Node child : node.children.values()) {
+        collect(child, ZKPaths.makePath(path, child.name), paths);
+      }
+    }
+  }
+
+  private void readData(String path) {
+    try {
+      client.getData().usingWatcher(watcher).inBackground((c, event) -> dataRead(event)).forPath(path);
+    } catch (Exception e) {
+      e.printStackTrace();
+    }
+  }
+
+  private void readChildren(String path) {
+    try {
+      client.getChildren().usingWatcher(watcher).inBackground((c, event) -> childrenRead(event)).forPath(path);
+    } catch (Exception e) {
+      e.printStackTrace();
+    }
+  }
+
+  private void dataRead(CuratorEvent event) {
+    if (closed) {
+      return;
+    }
+    final KeeperException.Code code = KeeperException.Code.get(event.getResultCode());
+    if (code == KeeperException.Code.NONODE) {
+      deleted(event.getPath());
+      if (event.getPath().equals(rootPath)) {
+        watchRootCreation();
+      }
+      return;
+    }
+    if (code != KeeperException.Code.OK) {
+      return;
+    }
+    final String path = event.getPath();
+    final byte[] data = event.getData();
+    final boolean added;
+    lock.writeLock().lock();
+    try {
+      final Node node = find(path, false);
+      // removed in the meantime, the answer is stale.
+      if (node == null || node.present && node.mzxid == event.getStat().getMzxid()) {
+        return;
+      }
+      added = !node.present;
+      if (added) {
+        node.present = true;
+        nodes++;
+        pathChars += path.length();
+      }
+      node.mzxid = event.getStat().getMzxid();
+      arena.free(node.ref, node.length);
+      node.ref = arena.allocate(data);
+      node.length = data != null ? data.length : 0;
+      if (arena.needsCompaction()) {
+        compact();
+      }
+    } finally {
+      lock.writeLock().unlock();
+    }
+    if (listener != null) {
+      if (added) {
+        listener.nodeAdded(path, decode(data));
+      } else {
+        listener.nodeUpdated(path, decode(data));
+      }
+    }
+  }
+
+  private void watchRootCreation() {
+    try {
+      client.checkExists().usingWatcher(watcher).inBackground((c, event) -> {
+        // created before the watch was set.
+        if (event.getResultCode() == KeeperException.Code.OK.intValue()) {
+          refresh(rootPath);
+        }
+      }).forPath(rootPath);
+    } catch (Exception e) {
+      e.printStackTrace();
+    }
+  }
+
+  private void childrenRead(CuratorEvent event) {
+    if (closed || event.getResultCode() != KeeperException.Code.OK.intValue()) {
+      return;
+    }
+    final String path = event.getPath();
+    final List<String> added = new ArrayList<>();
+    final List<String> gone = new ArrayList<>();
+    lock.writeLock().lock();
+    try {
+      final Node node = find(path, false);
+      if (node == null) {
+        return;
+      }
+      final Set<String> names = new HashSet<>(event.getChildren());
+      if (node.children != null) {
+        for (String name : node.children.keySet()) {
+          if (!names.contains(name)) {
+            // its delete event was missed, e.g. while the session was lost.
+            gone.add(ZKPaths.makePath(path, name));
+          }
+        }
+      }
+      for (String name : names) {
+        if (node.children == null || !node.children.containsKey(name)) {
+          if (node.children == null) {
+            node.children = new HashMap<>(4);
+          }
+          final Node child = new Node(intern(name));
+          node.children.put(child.name, child);
+          added.add(ZKPaths.makePath(path, name));
+        }
+      }
+    } finally {
+      lock.writeLock().unlock();
+    }
+    for (String childPath : gone) {
+      deleted(childPath);
+    }
+    for (String childPath : added) {
+      refresh(childPath);
+    }
+  }
+
+  private static String decode(byte[] data) {
+    return PayloadCodec.decode(data);
+  }
+
+  // Drops the node and anything still below it. The root stays in the trie, marked as missing.
+  private void deleted(String path) {
+    final Map<String, byte[]> removed = new LinkedHashMap<>();
+    lock.writeLock().lock();
+    try {
+      final Node node = find(path, false);
+      if (node == null) {
+        return;
+      }
+      remove(node, path, removed);
+      if (!path.equals(rootPath)) {
+        final ZKPaths.PathAndNode pathAndNode = ZKPaths.getPathAndNode(path);
+        final Node parent = find(pathAndNode.getPath(), false);
+        if (parent != null && parent.children != null) {
+          parent.children.remove(pathAndNode.getNode());
+          release(node.name);
+          if (parent.children.isEmpty()) {
+            parent.children = null;
+          }
+        }
+      }
+    } finally {
+      lock.writeLock().unlock();
+    }
+    if (listener != null) {
+      for (Map.Entry<String, byte[]> entry : removed.entrySet()) {
+        listener.nodeDeleted(entry.getKey(), decode(entry.getValue()));
+      }
+    }
+  }
+
+  // children first, the way ZooKeeper deletes them. Called with the write lock held.
+  private void remove(Node node, String path, Map<String, byte[]> removed) {
+    if (node.children != null) {
+      for (Node child : node.children.values()) {
+        remove(child, ZKPaths.makePath(path, child.name), removed);
+        release(child.name);
+      }
+      node.children = null;
+    }
+    if (node.present) {
+      removed.put(path, arena.read(node.ref, node.length));
+      arena.free(node.ref, node.length);
+      node.ref = PayloadArena.NO_DATA;
+      node.length = 0;
+      node.mzxid = 0;
+      node.present = false;
+      nodes--;
+      pathChars -= path.length();
+    }
+  }
+
+  // Callers hold the lock, the write lock if create is true.
+  private Node find(String path, boolean create) {
+    Node node = root;
+    for (String segment : ZKPaths.split(path)) {
+      Node child = node.children != null ? node.children.get(segment) : null;
+      if (child == null) {
+        if (!create) {
+          return null;
+        }
+        if (node.children == null) {
+          node.children = new HashMap<>(4);
+        }
+        child = new Node(intern(segment));
+        node.children.put(child.name, child);
+      }
+      node = child;
+    }
+    return node;
+  }
+
+  // For a new trie node, paired with release when the node leaves the trie. Called with the write lock held.
+  private String intern(String name) {
+    final Segment segment = segments.computeIfAbsent(name, Segment::new);
+    segment.nodes++;
+    return segment.name;
+  }
+
+  private void release(String name) {
+    final Segment segment = segments.get(name);
+    if (segment != null && --segment.nodes == 0) {
+      segments.remove(name);
+    }
+  }
+
+  /**
+   * @return a copy of the data of the node at the given full path, null if it is not in the tree or has no data.
+   */
+  public byte[] getData(String path) {
+    lock.readLock().lock();
+    try {
+      final Node node = find(path, false);
+      return node != null && node.present ? arena.read(node.ref, node.length) : null;
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Reads the data without copying it. The view stays valid until the arena is compacted, see {@link #compact()},
+   * and keeps showing the data it was taken from if the node changes before that.
+   */
+  public ByteBuffer getDataView(String path) {
+    lock.readLock().lock();
+    try {
+      final Node node = find(path, false);
+      return node != null && node.present ? arena.view(node.ref, node.length) : null;
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  public boolean exists(String path) {
+    lock.readLock().lock();
+    try {
+      final Node node = find(path, false);
+      return node != null && node.present;
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * @return the names of the children of the node at the given full path.
+   */
+  public List<String> getChildren(String path) {
+    lock.readLock().lock();
+    try {
+      final Node node = find(path, false);
+      if (node == null || node.children == null) {
+        return Collections.emptyList();
+      }
+      final List<String> names = new ArrayList<>();
+      for (Node child : node.children.values()) {
+        if (child.present) {
+          names.add(child.name);
+        }
+      }
+      return names;
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  public int size() {
+    lock.readLock().lock();
+    try {
+      return nodes;
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Copies the live payloads into a fresh arena so the space of overwritten and deleted payloads is given back.
+   * Happens on its own once more than half of the arena is wasted.
+   */
+  public void compact() {
+    lock.writeLock().lock();
+    try {
+      final PayloadArena old = arena;
+      arena = new PayloadArena(slabSize);
+      copy(root, old);
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  private void copy(Node node, PayloadArena from) {
+    if (node.ref != PayloadArena.NO_DATA) {
+      node.ref = arena.allocate(from.read(node.ref, node.length));
+    }
+    if (node.children != null) {
+      for (Node child : node.children.values()) {
+        copy(child, from);
+      }
+    }
+  }
+
+  /**
+   * @return the memory taken by the tree as held now, see {@link MemoryReport} for what is estimated.
+   */
+  public MemoryReport memoryReport() {
+    lock.readLock().lock();
+    try {
+      long segmentChars = 0;
+      for (String segment : segments.keySet()) {
+        segmentChars += segment.length();
+      }
+      final long payload = arena.getUsed();
+      final long watches = (long) nodes * WATCH_BYTES + pathChars;
+      final long heap = (long) countTrieNodes(root) * (TRIE_NODE_BYTES + MAP_ENTRY_BYTES)
+          + (long) segments.size() * (STRING_BYTES + SEGMENT_BYTES + MAP_ENTRY_BYTES) + segmentChars + watches;
+      // the TreeCache shares the path String of a node with its watches.
+      final long treeCache = (long) nodes * (TREE_CACHE_NODE_BYTES + CHILD_DATA_BYTES + STAT_BYTES
+          + BYTE_ARRAY_BYTES) + payload + watches;
+      return new MemoryReport(nodes, segments.size(), payload, arena.getCapacity(), arena.getWasted(), heap, treeCache);
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  private static int countTrieNodes(Node node) {
+    int count = 1;
+    if (node.children != null) {
+      for (Node child : node.children.values()) {
+        count += countTrieNodes(child);
+      }
+    }
+    return count;
+  }
+
+  /**
+   * Stops following the tree. ZooKeeper keeps the watches already set until they fire once, which is ignored.
+   */
+  @Override
+  public void close() throws IOException {
+    closed = true;
+    client.getConnectionStateListenable().removeListener(connectionStateListener);
+  }
+}
@@ -0,0 +1,207 @@
+package poc.curator;
+
+import org.apache.curator.RetryPolicy;
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.CuratorFrameworkFactory;
+import org.apache.curator.framework.imps.CuratorFrameworkState;
+import org.apache.curator.retry.ExponentialBackoffRetry;
+import org.apache.curator.utils.CloseableUtils;
+import org.apache.zookeeper.KeeperException;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A primary ZooKeeper session for writes plus any number of read sessions, e.g. each against a different observer.
+ * Reads and watches are spread over the read sessions by path hash, so the same path always lands on the same
+ * session and its watch events stay in order. Without read sessions everything goes through the primary.
+ *
+ * A read session may lag behind the primary. Every write made through the primary must be reported with
+ * {@link #wrote()}; the next read on each read session then issues a sync() first, so reads see the writes made
+ * before them. One sync covers all writes made up to it, so a burst of writes costs one sync per read session.
+ */
+public final class CuratorClientPool implements Closeable {
+
+  private final CuratorFramework primary;
+  private final List<Reader> readers;
+  // false when the clients are shared with other code, which then closes them.
+  private final boolean ownsClients;
+  // number of writes made through the primary so far.
+  private final AtomicLong writes = new AtomicLong();
+
+  private static final class Reader {
+    private final CuratorFramework client;
+    // writes covered by the last sync on this session.
+    private final AtomicLong synced = new AtomicLong();
+
+    private Reader(CuratorFramework client) {
+      this.client = client;
+    }
+  }
+
+  /**
+   * @param primaryAddress ensemble to write to.
+   * @param readAddresses  one read session is opened per address, e.g. one per observer. May be empty.
+   */
+  public CuratorClientPool(String primaryAddress, Collection<String> readAddresses) {
+    this(primaryAddress, readAddresses, false);
+  }
+
+  /**
+   * @param canBeReadOnly true to let the sessions fall back to a read-only server while the ensemble has no quorum,
+   *                      so reads keep working, see {@link DegradedMode}. Needs servers run with
+   *                      readonlymode.enabled=true.
+   */
+  public CuratorClientPool(String primaryAddress, Collection<String> readAddresses, boolean canBeReadOnly) {
+    this(newClient(primaryAddress, canBeReadOnly), newClients(readAddresses, canBeReadOnly));
+  }
+
+  /**
+   * Pools already created, not yet started clients. The pool starts and closes them.
+   */
+  public CuratorClientPool(CuratorFramework primary, Collection<CuratorFramework> readClients) {
+    this(primary, readClients, true);
+  }
+
+  /**
+   * @param ownsClients false to leave closing the clients to their creator, e.g. when they are shared with other
+   *                    recipes. Clients that are not started yet are started by {@link #start()} either way.
+   */
+  public CuratorClientPool(CuratorFramework primary, Collection<CuratorFramework> readClients, boolean ownsClients) {
+    this.primary = primary;
+    this.ownsClients = ownsClients;
+    final List<Reader> readers = new ArrayList<>();
+    for (CuratorFramework client : readClients) {
+      readers.add(new Reader(client));
+    }
+    this.readers = Collections.unmodifiableList(readers);
+  }
+
+  private static CuratorFramework newClient(String address, boolean canBeReadOnly) {
+    // Specify retry mechanism in case of recoverable errors from ZooKeeper.
+    final RetryPolicy retryPolicy = new ExponentialBackoffRetry(1000, 3);
+    return CuratorFrameworkFactory.builder()
+        .connectString(address)
+        .retryPolicy(retryPolicy)
+        .canBeReadOnly(canBeReadOnly)
+        .build();
+  }
+
+  private static List<CuratorFramework> newClients(Collection<String> addresses, boolean canBeReadOnly) {
+    final List<CuratorFramework> clients = new ArrayList<>();
+    for (String address : addresses) {
+      clients.add(newClient(address, canBeReadOnly));
+    }
+    return clients;
+  }
+
+  public void start() {
+    startIfLatent(primary);
+    for (Reader reader : readers) {
+      startIfLatent(reader.client);
+    }
+  }
+
+  private static void startIfLatent(CuratorFramework client) {
+    if (client.getState() == CuratorFrameworkState.LATENT) {
+      client.start();
+    }
+  }
+
+  public CuratorFramework getPrimary() {
+    return primary;
+  }
+
+  /**
+   * @return every distinct session reads can go to: the read sessions, or just the primary if there are none.
+   */
+  public List<CuratorFramework> getReadClients() {
+    if (readers.isEmpty()) {
+      return Collections.singletonList(primary);
+    }
+    final List<CuratorFramework> clients = new ArrayList<>();
+    for (Reader reader : readers) {
+      clients.add(reader.client);
+    }
+    return clients;
+  }
+
+  /**
+   * @return the index in {@link #getReadClients()} of the session that serves the given path.
+   */
+  public int readIndex(String path) {
+    return readers.isEmpty() ? 0 : Math.floorMod(path.hashCode(), readers.size());
+  }
+
+  /**
+   * @return the session that serves reads and watches for the given path, without syncing it.
+   */
+  public CuratorFramework getReadClient(String path) {
+    return readers.isEmpty() ? primary : readers.get(readIndex(path)).client;
+  }
+
+  /**
+   * Reports a write made through the primary, so the read sessions sync before their next read.
+   */
+  public void wrote() {
+    writes.incrementAndGet();
+  }
+
+  /**
+   * @return the session for the given path, synced first if writes were made since its last sync.
+   */
+  public CuratorFramework reader(String path) throws Exception {
+    try {
+      return readerAsync(path).get();
+    } catch (ExecutionException e) {
+      throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+    }
+  }
+
+  /**
+   * Non-blocking {@link #reader(String)}.
+   */
+  public CompletableFuture<CuratorFramework> readerAsync(String path) {
+    if (readers.isEmpty()) {
+      return CompletableFuture.completedFuture(primary);
+    }
+    final Reader reader = readers.get(readIndex(path));
+    // read before the sync is sent, so it covers at least these writes.
+    final long target = writes.get();
+    if (reader.synced.get() >= target) {
+      return CompletableFuture.completedFuture(reader.client);
+    }
+    final CompletableFuture<CuratorFramework> future = new CompletableFuture<>();
+    try {
+      reader.client.sync().inBackground((client, event) -> {
+        final KeeperException.Code code = KeeperException.Code.get(event.getResultCode());
+        if (code == KeeperException.Code.OK || code == KeeperException.Code.NONODE) {
+          reader.synced.accumulateAndGet(target, Math::max);
+          future.complete(reader.client);
+        } else {
+          future.completeExceptionally(KeeperException.create(code, event.getPath()));
+        }
+      }).forPath(path);
+    } catch (Exception e) {
+      future.completeExceptionally(e);
+    }
+    return future;
+  }
+
+  @Override
+  public void close() {
+    if (!ownsClients) {
+      return;
+    }
+    for (Reader reader : readers) {
+      CloseableUtils.closeQuietly(reader.client);
+    }
+    CloseableUtils.closeQuietly(primary);
+  }
+}
@@ -0,0 +1,237 @@
+package poc.curator;
+
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.Watcher;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Read-through cache for node data.
+ *
+ * Every miss reads the node with a one-shot watch, and the watch drops the entry as soon as the node changes
+ * or goes away, so a hit never returns data older than the last notification. Nodes that do not exist are
+ * cached as well, with an exists watch. An optional TTL bounds how long an entry is trusted in case a
+ * notification gets lost. The cache is bounded by the total size of the cached data and paths and evicts the
+ * least recently used entries first. ZooKeeper cannot take a watch back, so the watch of an evicted entry stays
+ * until it fires once and is then ignored.
+ */
+public final class DataCacheRecipe {
+
+  interface ClientSource {
+    /**
+     * @return the session to read the node at the given full path from.
+     */
+    CuratorFramework client(String path) throws Exception;
+  }
+
+  private final ClientSource clients;
+  private final long maxBytes;
+  private final long ttlNanos;
+
+  // access ordered, so iteration starts at the least recently used entry. Guarded by this.
+  private final Map<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+  private long totalBytes;
+
+  // paths with a load in flight, so an invalidation of one path only keeps the loads of that path from being
+  // cached. Guarded by this.
+  private final Map<String, InFlight> inFlight = new HashMap<>();
+  private final Watcher watcher = this::process;
+
+  private final LongAdder hits = new LongAdder();
+  private final LongAdder misses = new LongAdder();
+  private final LongAdder evictions = new LongAdder();
+  private final LongAdder invalidations = new LongAdder();
+
+  private static final class Entry {
+    private final byte[] data;
+    private final long loadedAt;
+
+    private Entry(byte[] data, long loadedAt) {
+      this.data = data;
+      this.loadedAt = loadedAt;
+    }
+  }
+
+  private static final class InFlight {
+    // bumped on every invalidation of the path; a load that saw a bump must not be cached.
+    private long version;
+    private int loads;
+  }
+
+  /**
+   * @param maxBytes upper bound for the cached data plus paths.
+   * @param ttl      how long an entry may be served without being re-read, 0 to rely on watches only.
+   */
+  public DataCacheRecipe(CuratorFramework client, long maxBytes, long ttl, TimeUnit unit) {
+    this(path -> client, maxBytes, ttl, unit);
+  }
+
+  /**
+   * @param clients picks the session per path, e.g. {@link CuratorClientPool#reader(String)}.
+   */
+  public DataCacheRecipe(ClientSource clients, long maxBytes, long ttl, TimeUnit unit) {
+    this.clients = clients;
+    this.maxBytes = maxBytes;
+    this.ttlNanos = unit.toNanos(ttl);
+  }
+
+  /**
+   * Returns the data of the node at the given full path, or null if it does not exist.
+   */
+  public byte[] get(String path) throws Exception {
+    synchronized (this) {
+      final Entry entry = entries.get(path);
+      if (entry != null) {
+        if (ttlNanos == 0 || System.nanoTime() - entry.loadedAt < ttlNanos) {
+          hits.increment();
+          return entry.data;
+        }
+        remove(path);
+      }
+    }
+    misses.increment();
+    return load(path);
+  }
+
+  private byte[] load(String path) throws Exception {
+    final InFlight load;
+    final long startVersion;
+    synchronized (this) {
+      load = inFlight.computeIfAbsent(path, p -> new InFlight());
+      load.loads++;
+      startVersion = load.version;
+    }
+    try {
+      final byte[] data = read(path);
+      synchronized (this) {
+        if (load.version == startVersion) {
+          put(path, data);
+        }
+      }
+      return data;
+    } finally {
+      synchronized (this) {
+        if (--load.loads == 0) {
+          inFlight.remove(path);
+        }
+      }
+    }
+  }
+
+  private byte[] read(String path) throws Exception {
+    final CuratorFramework client = clients.client(path);
+    while (true) {
+      try {
+        return client.getData().usingWatcher(watcher).forPath(path);
+      } catch (KeeperException.NoNodeException e) {
+        // watch for the node to show up instead.
+        if (client.checkExists().usingWatcher(watcher).forPath(path) == null) {
+          return null;
+        }
+      }
+    }
+  }
+
+  /**
+   * Drops the entry for the given full path, e.g. after writing it.
+   */
+  public synchronized void invalidate(String path) {
+    final InFlight load = inFlight.get(path);
+    if (load != null) {
+      load.version++;
+    }
+    if (remove(path)) {
+      invalidations.increment();
+    }
+  }
+
+  public synchronized void clear() {
+    for (InFlight load : inFlight.values()) {
+      load.version++;
+    }
+    entries.clear();
+    totalBytes = 0;
+  }
+
+  private void process(WatchedEvent event) {
+    if (event.getType() == Watcher.Event.EventType.None) {
+      // watches do not survive a new session.
+      if (event.getState() == Watcher.Event.KeeperState.Expired) {
+        clear();
+      }
+    } else if (event.getPath() != null) {
+      // also the one notification of an evicted entry, which finds nothing to drop.
+      invalidate(event.getPath());
+    }
+  }
+
+  // Callers hold the lock.
+  private void put(String path, byte[] data) {
+    remove(path);
+    entries.put(path, new Entry(data, System.nanoTime()));
+    totalBytes += sizeOf(path, data);
+    final Iterator<Map.Entry<String, Entry>> eldest = entries.entrySet().iterator();
+    while (totalBytes > maxBytes && eldest.hasNext()) {
+      final Map.Entry<String, Entry> entry = eldest.next();
+      totalBytes -= sizeOf(entry.getKey(), entry.getValue().data);
+      eldest.remove();
+      evictions.increment();
+    }
+  }
+
+  private boolean remove(String path) {
+    final Entry entry = entries.remove(path);
+    if (entry != null) {
+      totalBytes -= sizeOf(path, entry.data);
+      return true;
+    }
+    return false;
+  }
+
+  private static long sizeOf(String path, byte[] data) {
+    return path.length() + (data != null ? data.length : 0);
+  }
+
+  public long getHits() {
+    return hits.sum();
+  }
+
+  public long getMisses() {
+    return misses.sum();
+  }
+
+  public long getEvictions() {
+    return evictions.sum();
+  }
+
+  public long getInvalidations() {
+    return invalidations.sum();
+  }
+
+  public synchronized int size() {
+    return entries.size();
+  }
+
+  public synchronized long getBytes() {
+    return totalBytes;
+  }
+
+  public double getHitRatio() {
+    final long hitCount = hits.sum();
+    final long total = hitCount + misses.sum();
+    return total == 0 ? 0 : (double) hitCount / total;
+  }
+
+  @Override
+  public String toString() {
+    return "hits=" + getHits() + ", misses=" + getMisses() + ", evictions=" + getEvictions()
+        + ", invalidations=" + getInvalidations() + ", entries=" + size() + ", bytes=" + getBytes();
+  }
+}
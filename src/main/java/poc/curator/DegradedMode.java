@@ -0,0 +1,383 @@
+package poc.curator;
+
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.state.ConnectionState;
+import org.apache.curator.framework.state.ConnectionStateListener;
+import org.apache.zookeeper.KeeperException;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Keeps reads answering while the ensemble has no quorum. A session that is connected to a read-only server
+ * (READ_ONLY, only with clients built with canBeReadOnly) still reads from it; a session without any connection
+ * answers with the last value read for the same key, right away instead of waiting for the connection. Only the
+ * most recently used keys keep their last value. Both kinds of answers may be stale and are counted, see
+ * {@link #getReadOnlyReads()} and {@link #getLastKnownReads()}, and {@link #getStalenessMillis()} tells how long the
+ * primary session has been without quorum.
+ *
+ * Writes wait until the primary session is back on a quorum member, up to a timeout, instead of failing or being
+ * retried against a read-only server.
+ */
+public final class DegradedMode implements ConnectionStateListener, Closeable {
+
+  private final CuratorFramework primary;
+  private final Set<CuratorFramework> clients = new LinkedHashSet<>();
+  private final long writeTimeoutNanos;
+  // last state per session, a session missing here has not reported one since this was started.
+  private final Map<CuratorFramework, ConnectionState> states = new ConcurrentHashMap<>();
+  private final int maxLastKnown;
+  // last answer per key, only for reads made through this. Access ordered, guarded by itself.
+  private final Map<String, Object> lastKnown = new LinkedHashMap<>(16, 0.75f, true);
+  private final LongAdder readOnlyReads = new LongAdder();
+  private final LongAdder lastKnownReads = new LongAdder();
+  private final LongAdder blockedWrites = new LongAdder();
+  private final LongAdder rejectedWrites = new LongAdder();
+  // guarded by this, async writes waiting for quorum.
+  private final List<CompletableFuture<Void>> waiting = new ArrayList<>();
+  // guarded by this, created on the first async write that has to wait.
+  private ScheduledExecutorService timer;
+  // guarded by this
+  private boolean closed;
+  // System.nanoTime() when the primary lost quorum, 0 while it has quorum.
+  private volatile long degradedSince;
+  private volatile RecipeMetrics metrics;
+
+  /**
+   * @param primary      the session writes go through.
+   * @param readClients  the sessions reads go through, may contain the primary.
+   * @param writeTimeout how long a write waits for quorum before it fails.
+   * @param maxLastKnown for how many keys the last answer is kept, the least recently used are dropped first.
+   */
+  public DegradedMode(CuratorFramework primary, Collection<CuratorFramework> readClients, long writeTimeout,
+                      TimeUnit unit, int maxLastKnown) {
+    this.primary = primary;
+    clients.add(primary);
+    clients.addAll(readClients);
+    this.writeTimeoutNanos = unit.toNanos(writeTimeout);
+    this.maxLastKnown = maxLastKnown;
+  }
+
+  public void start() {
+    for (CuratorFramework client : clients) {
+      client.getConnectionStateListenable().addListener(this);
+      if (client.getZookeeperClient().isConnected()) {
+        states.putIfAbsent(client, ConnectionState.CONNECTED);
+      }
+    }
+  }
+
+  /**
+   * Counts the stale reads per operation in these metrics as well.
+   */
+  public void setMetrics(RecipeMetrics metrics) {
+    this.metrics = metrics;
+  }
+
+  @Override
+  public void stateChanged(CuratorFramework client, ConnectionState newState) {
+    states.put(client, newState);
+    if (client != primary) {
+      return;
+    }
+    if (hasQuorum(newState)) {
+      degradedSince = 0;
+      final List<CompletableFuture<Void>> ready;
+      synchronized (this) {
+        notifyAll();
+        ready = new ArrayList<>(waiting);
+        waiting.clear();
+      }
+      for (CompletableFuture<Void> future : ready) {
+        future.complete(null);
+      }
+    } else if (degradedSince == 0) {
+      degradedSince = System.nanoTime();
+    }
+  }
+
+  private static boolean hasQuorum(ConnectionState state) {
+    return state == ConnectionState.CONNECTED || state == ConnectionState.RECONNECTED;
+  }
+
+  /**
+   * @return true unless the primary session is known to be disconnected or on a read-only server.
+   */
+  public boolean isWritable() {
+    final ConnectionState state = states.get(primary);
+    return state == null || hasQuorum(state);
+  }
+
+  /**
+   * @return true while the session is known to have no connection at all.
+   */
+  public boolean isDisconnected(CuratorFramework client) {
+    final ConnectionState state = states.get(client);
+    return state == ConnectionState.SUSPENDED || state == ConnectionState.LOST;
+  }
+
+  /**
+   * @return true while the session is connected to a read-only server.
+   */
+  public boolean isReadOnly(CuratorFramework client) {
+    return states.get(client) == ConnectionState.READ_ONLY;
+  }
+
+  /**
+   * @return how long the primary session has been without quorum, 0 while it has quorum. Answers read since then
+   * may be this old.
+   */
+  public long getStalenessMillis() {
+    final long since = degradedSince;
+    return since == 0 ? 0 : TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - since);
+  }
+
+  /**
+   * Blocks until the primary session has quorum.
+   *
+   * @throws KeeperException.NotReadOnlyException    if it is still on a read-only server after the write timeout.
+   * @throws KeeperException.ConnectionLossException if it is still disconnected after the write timeout.
+   */
+  public void awaitWritable() throws KeeperException, InterruptedException {
+    if (isWritable()) {
+      return;
+    }
+    blockedWrites.increment();
+    final long deadline = System.nanoTime() + writeTimeoutNanos;
+    synchronized (this) {
+      while (!isWritable()) {
+        final long remaining = deadline - System.nanoTime();
+        if (remaining <= 0 || closed) {
+          rejectedWrites.increment();
+          throw notWritable();
+        }
+        TimeUnit.NANOSECONDS.timedWait(this, remaining);
+      }
+    }
+  }
+
+  /**
+   * Non-blocking {@link #awaitWritable()}: completes once the primary session has quorum, or exceptionally after
+   * the write timeout or when this is closed.
+   */
+  public CompletableFuture<Void> whenWritable() {
+    if (isWritable()) {
+      return CompletableFuture.completedFuture(null);
+    }
+    blockedWrites.increment();
+    final CompletableFuture<Void> future = new CompletableFuture<>();
+    synchronized (this) {
+      // quorum may have come back before we got the lock.
+      if (isWritable()) {
+        return CompletableFuture.completedFuture(null);
+      }
+      if (closed) {
+        rejectedWrites.increment();
+        future.completeExceptionally(notWritable());
+        return future;
+      }
+      waiting.add(future);
+      if (timer == null) {
+        timer = Executors.newSingleThreadScheduledExecutor(r -> {
+          final Thread thread = new Thread(r, "DegradedMode-timer");
+          thread.setDaemon(true);
+          return thread;
+        });
+      }
+      timer.schedule(() -> {
+        synchronized (this) {
+          if (!waiting.remove(future)) {
+            return;
+          }
+        }
+        rejectedWrites.increment();
+        future.completeExceptionally(notWritable());
+      }, writeTimeoutNanos, TimeUnit.NANOSECONDS);
+    }
+    return future;
+  }
+
+  private KeeperException notWritable() {
+    return KeeperException.create(isReadOnly(primary) ? KeeperException.Code.NOTREADONLY
+        : KeeperException.Code.CONNECTIONLOSS);
+  }
+
+  /**
+   * Runs the query on the given session and remembers its answer under the key. While the session is disconnected,
+   * or if the query fails for lack of a connection, the last answer is returned instead, if there is one.
+   *
+   * @param operation name the stale answers are counted under in the metrics.
+   */
+  public <V> V read(CuratorFramework client, String key, String operation, Callable<V> query) throws Exception {
+    final V stale = lastKnown(client, key, operation);
+    if (stale != null) {
+      return stale;
+    }
+    final V value;
+    try {
+      value = query.call();
+    } catch (KeeperException.NoNodeException e) {
+      forget(key);
+      throw e;
+    } catch (KeeperException.ConnectionLossException | KeeperException.SessionExpiredException e) {
+      final V last = lastKnown(key, operation);
+      if (last == null) {
+        throw e;
+      }
+      return last;
+    }
+    remember(client, key, operation, value);
+    return value;
+  }
+
+  /**
+   * The fallback of {@link #read(CuratorFramework, String, String, Callable)} for queries run in the background.
+   *
+   * @return the last answer for the key if the query failed with the given result code for lack of a connection,
+   * else null so the caller reports the result as is.
+   */
+  public <V> V lastKnownAfter(int resultCode, String key, String operation) {
+    if (resultCode != KeeperException.Code.CONNECTIONLOSS.intValue()
+        && resultCode != KeeperException.Code.SESSIONEXPIRED.intValue()) {
+      return null;
+    }
+    return lastKnown(key, operation);
+  }
+
+  /**
+   * @return the last answer for the key if the session is disconnected, else null so the caller queries.
+   */
+  public <V> V lastKnown(CuratorFramework client, String key, String operation) {
+    return isDisconnected(client) ? lastKnown(key, operation) : null;
+  }
+
+  @SuppressWarnings("unchecked")
+  private <V> V lastKnown(String key, String operation) {
+    final V last;
+    synchronized (lastKnown) {
+      last = (V) lastKnown.get(key);
+    }
+    if (last != null) {
+      staleRead(lastKnownReads, operation);
+    }
+    return last;
+  }
+
+  /**
+   * Remembers an answer read from the given session, counted as stale if that is on a read-only server.
+   */
+  public void remember(CuratorFramework client, String key, String operation, Object value) {
+    if (value == null) {
+      forget(key);
+    } else {
+      synchronized (lastKnown) {
+        lastKnown.put(key, value);
+        if (lastKnown.size() > maxLastKnown) {
+          final Iterator<String> eldest = lastKnown.keySet().iterator();
+          eldest.next();
+          eldest.remove();
+        }
+      }
+    }
+    if (isReadOnly(client)) {
+      staleRead(readOnlyReads, operation);
+    }
+  }
+
+  private void forget(String key) {
+    synchronized (lastKnown) {
+      lastKnown.remove(key);
+    }
+  }
+
+  /** Keys that have a last answer kept. */
+  public int getLastKnownKeys() {
+    synchronized (lastKnown) {
+      return lastKnown.size();
+    }
+  }
+
+  /**
+   * Counts an answer from a watch driven cache of the given session as stale while that has no quorum.
+   */
+  public void cachedRead(CuratorFramework client, String operation) {
+    if (isReadOnly(client)) {
+      staleRead(readOnlyReads, operation);
+    } else if (isDisconnected(client)) {
+      staleRead(lastKnownReads, operation);
+    }
+  }
+
+  private void staleRead(LongAdder counter, String operation) {
+    counter.increment();
+    final RecipeMetrics m = metrics;
+    if (m != null) {
+      m.staleRead(operation);
+    }
+  }
+
+  /** Reads answered by a read-only server. */
+  public long getReadOnlyReads() {
+    return readOnlyReads.sum();
+  }
+
+  /** Reads answered from the last known value or a cache while disconnected. */
+  public long getLastKnownReads() {
+    return lastKnownReads.sum();
+  }
+
+  /** Writes that had to wait for quorum. */
+  public long getBlockedWrites() {
+    return blockedWrites.sum();
+  }
+
+  /** Writes that failed because quorum did not come back in time. */
+  public long getRejectedWrites() {
+    return rejectedWrites.sum();
+  }
+
+  /**
+   * Stops following the sessions. Writes still waiting for quorum fail as if their timeout had passed.
+   */
+  @Override
+  public void close() {
+    for (CuratorFramework client : clients) {
+      client.getConnectionStateListenable().removeListener(this);
+    }
+    final List<CompletableFuture<Void>> pending;
+    synchronized (this) {
+      closed = true;
+      notifyAll();
+      if (timer != null) {
+        timer.shutdownNow();
+        timer = null;
+      }
+      pending = new ArrayList<>(waiting);
+      waiting.clear();
+    }
+    for (CompletableFuture<Void> future : pending) {
+      rejectedWrites.increment();
+      future.completeExceptionally(notWritable());
+    }
+  }
+
+  @Override
+  public String toString() {
+    return "stalenessMillis=" + getStalenessMillis() + " readOnlyReads=" + getReadOnlyReads() + " lastKnownReads="
+        + getLastKnownReads() + " blockedWrites=" + getBlockedWrites() + " rejectedWrites=" + getRejectedWrites();
+  }
+}
@@ -0,0 +1,86 @@
+package poc.curator;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Histogram of latencies in nanoseconds with log-linear buckets, in the spirit of HdrHistogram.
+ *
+ * Every power of two is split into 16 linear buckets, so a recorded value is off by at most 1/16 (about 6%) while
+ * the whole range of a long fits in 1024 counters. Recording is a few bit operations and atomic increments, no locks,
+ * so it can be called from any number of threads.
+ */
+public final class LatencyHistogram {
+
+  private static final int SUB_BITS = 4;
+  private static final int SUB_BUCKETS = 1 << SUB_BITS;
+  private static final int BUCKETS = 64 * SUB_BUCKETS;
+
+  private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+  private final LongAdder count = new LongAdder();
+  private final LongAdder sum = new LongAdder();
+  private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+  public void record(long nanos) {
+    final long value = Math.max(nanos, 0);
+    counts.incrementAndGet(index(value));
+    count.increment();
+    sum.add(value);
+    max.accumulate(value);
+  }
+
+  static int index(long value) {
+    if (value < SUB_BUCKETS) {
+      return (int) value;
+    }
+    final int exponent = 63 - Long.numberOfLeadingZeros(value);
+    final int sub = (int) (value >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+    return (exponent - SUB_BITS + 1) * SUB_BUCKETS + sub;
+  }
+
+  static long lowerBound(int index) {
+    if (index < SUB_BUCKETS) {
+      return index;
+    }
+    final int exponent = index / SUB_BUCKETS + SUB_BITS - 1;
+    return (1L << exponent) | ((long) (index % SUB_BUCKETS) << (exponent - SUB_BITS));
+  }
+
+  public long getCount() {
+    return count.sum();
+  }
+
+  public long getMax() {
+    return max.get();
+  }
+
+  public double getMean() {
+    final long n = count.sum();
+    return n == 0 ? 0 : (double) sum.sum() / n;
+  }
+
+  /**
+   * @param percentile between 0 and 100.
+   * @return the highest value in the bucket holding the given percentile, 0 if nothing was recorded. Not exact
+   * while values are being recorded concurrently.
+   */
+  public long getPercentile(double percentile) {
+    long total = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      total += counts.get(i);
+    }
+    if (total == 0) {
+      return 0;
+    }
+    final long rank = Math.max(1, (long) Math.ceil(total * percentile / 100));
+    long seen = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      seen += counts.get(i);
+      if (seen >= rank) {
+        return i + 1 < BUCKETS ? Math.min(lowerBound(i + 1) - 1, getMax()) : getMax();
+      }
+    }
+    return getMax();
+  }
+}
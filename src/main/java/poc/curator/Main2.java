@@ -2,8 +2,7 @@ package poc.curator;
 
 import org.apache.curator.utils.ZKPaths;
 import poc.curator.services.MyService;
-import poc.curator.services.OrdersService;
-import poc.curator.services.PaymentService;
+import poc.curator.services.ServiceDescriptor;
 
 import java.io.BufferedReader;
 import java.io.InputStreamReader;
@@ -17,18 +16,26 @@ import java.util.Random;
  */
 public final class Main2 {
 
+  private static final ServiceDescriptor ORDERS = ServiceDescriptor.builder(MyService.ORDERS_SERVICE)
+      .version("v1")
+      .uri("/myservices/orders")
+      .env("ENV", "PRODUCTION")
+      .env("ENV2", "HELLO")
+      .build();
+  private static final ServiceDescriptor PAYMENT = ServiceDescriptor.builder(MyService.PAYMENT_SERVICE)
+      .version("v1")
+      .uri("/myservices/payment")
+      .env("ENV", "PRODUCTION")
+      .env("ENV2", "SHOW ME THE MONEY")
+      .build();
+
   private Random random = new Random();
 
   private void registerService(final ZooKeeperRecipes zooKeeperRecipes, final String name) throws Exception {
     // get a random port where we want to access request for our service. Typically this should be fixed though.
     // we do this so we can simulate the same service on multiple ports.
     final int randomPort = random.nextInt(10000);
-    MyService service;
-    if (randomPort % 2 == 0) {
-      service = new OrdersService();
-    } else {
-      service = new PaymentService();
-    }
+    final MyService service = randomPort % 2 == 0 ? ORDERS : PAYMENT;
     zooKeeperRecipes.registerService(service.getName(), randomPort, service);
     System.out.println("Service " + service.getName() + " registered on port " + randomPort);
   }
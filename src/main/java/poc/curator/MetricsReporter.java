@@ -0,0 +1,10 @@
+package poc.curator;
+
+/**
+ * Gets the current metrics on a fixed schedule, see {@link RecipeMetrics#startReporting(MetricsReporter, long,
+ * java.util.concurrent.TimeUnit)}. Implement it to push the numbers to a monitoring system.
+ */
+public interface MetricsReporter {
+
+  void report(RecipeMetrics metrics);
+}
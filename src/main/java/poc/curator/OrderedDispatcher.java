@@ -0,0 +1,163 @@
+package poc.curator;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Runs listener callbacks on a fixed number of worker threads instead of the Curator event thread.
+ *
+ * Every task is keyed by a znode path and all tasks for the same path go to the same worker (path hash striping),
+ * so events for one znode are still delivered in order while a slow listener only holds up the paths that hash to
+ * its worker. Each worker has a bounded queue; when it is full the submitting thread blocks, which pushes back on
+ * the event thread instead of piling up events in memory.
+ *
+ * Closing stops the workers; tasks still queued then, or dispatched afterwards, are dropped and counted, see
+ * {@link #getDropped()}.
+ */
+public final class OrderedDispatcher implements Closeable {
+
+  private final Stripe[] stripes;
+  private final LongAdder dispatched = new LongAdder();
+  private final LongAdder dropped = new LongAdder();
+  private volatile boolean closed;
+
+  private final class Stripe implements Runnable {
+    private final BlockingQueue<Runnable> queue;
+    private final Thread thread;
+
+    private Stripe(int queueCapacity, ThreadFactory threadFactory) {
+      queue = new ArrayBlockingQueue<>(queueCapacity);
+      thread = threadFactory.newThread(this);
+    }
+
+    @Override
+    public void run() {
+      while (!closed) {
+        final Runnable task;
+        try {
+          task = queue.take();
+        } catch (InterruptedException e) {
+          return;
+        }
+        try {
+          task.run();
+        } catch (Exception e) {
+          // one failing listener must not stop the others on this worker.
+          e.printStackTrace();
+        }
+      }
+    }
+  }
+
+  /**
+   * @param threads        number of workers.
+   * @param queueCapacity  number of pending tasks per worker before submitting blocks.
+   * @param virtualThreads run the workers on virtual threads when the JVM has them, platform threads otherwise.
+   */
+  public OrderedDispatcher(int threads, int queueCapacity, boolean virtualThreads) {
+    final ThreadFactory threadFactory = virtualThreads ? virtualThreadFactory("OrderedDispatcher-") : null;
+    final AtomicInteger count = new AtomicInteger();
+    final ThreadFactory factory = threadFactory != null ? threadFactory : r -> {
+      final Thread thread = new Thread(r, "OrderedDispatcher-" + count.getAndIncrement());
+      thread.setDaemon(true);
+      return thread;
+    };
+    stripes = new OrderedDispatcher.Stripe[threads];
+    for (int i = 0; i < threads; i++) {
+      stripes[i] = new Stripe(queueCapacity, factory);
+    }
+    for (Stripe stripe : stripes) {
+      stripe.thread.start();
+    }
+  }
+
+  // Thread.ofVirtual() only exists from Java 21 on, so look it up instead of linking against it.
+  private static ThreadFactory virtualThreadFactory(String namePrefix) {
+    try {
+      final Class<?> builderType = Class.forName("java.lang.Thread$Builder");
+      final Object builder = builderType.getMethod("name", String.class, long.class)
+          .invoke(Thread.class.getMethod("ofVirtual").invoke(null), namePrefix, 0L);
+      return (ThreadFactory) builderType.getMethod("factory").invoke(builder);
+    } catch (ReflectiveOperationException e) {
+      return null;
+    }
+  }
+
+  /**
+   * Queues the task behind all earlier tasks for the same path, blocking while that worker's queue is full. Once
+   * closed, the task is dropped: this is called from Curator's event thread, which must not fail on it.
+   */
+  public void dispatch(String path, Runnable task) throws InterruptedException {
+    if (closed) {
+      dropped.increment();
+      return;
+    }
+    final int hash = path != null ? path.hashCode() : 0;
+    final BlockingQueue<Runnable> queue = stripes[(hash & Integer.MAX_VALUE) % stripes.length].queue;
+    queue.put(task);
+    // closed while waiting for room, nobody is going to take it.
+    if (closed && queue.remove(task)) {
+      dropped.increment();
+      return;
+    }
+    dispatched.increment();
+  }
+
+  /**
+   * @return the number of tasks waiting over all workers.
+   */
+  public int getQueueDepth() {
+    int depth = 0;
+    for (Stripe stripe : stripes) {
+      depth += stripe.queue.size();
+    }
+    return depth;
+  }
+
+  /**
+   * @return the number of tasks waiting at the busiest worker.
+   */
+  public int getMaxQueueDepth() {
+    int depth = 0;
+    for (Stripe stripe : stripes) {
+      depth = Math.max(depth, stripe.queue.size());
+    }
+    return depth;
+  }
+
+  public long getDispatched() {
+    return dispatched.sum();
+  }
+
+  /** Tasks never run because the dispatcher was closed. */
+  public long getDropped() {
+    return dropped.sum();
+  }
+
+  public int getThreads() {
+    return stripes.length;
+  }
+
+  @Override
+  public void close() {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    final List<Runnable> pending = new ArrayList<>();
+    for (Stripe stripe : stripes) {
+      stripe.thread.interrupt();
+      stripe.queue.drainTo(pending);
+    }
+    if (!pending.isEmpty()) {
+      dropped.add(pending.size());
+      System.out.println("OrderedDispatcher closed, dropped " + pending.size() + " queued events");
+    }
+  }
+}
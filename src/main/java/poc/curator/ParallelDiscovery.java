@@ -0,0 +1,157 @@
+package poc.curator;
+
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.api.CuratorEvent;
+import org.apache.curator.utils.ZKPaths;
+import org.apache.curator.x.discovery.ServiceInstance;
+import org.apache.curator.x.discovery.details.InstanceSerializer;
+import org.apache.zookeeper.KeeperException;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Looks up the instances of all services with pipelined background operations.
+ *
+ * ServiceDiscovery.queryForInstances is called once per service name and does a getChildren followed by one
+ * getData per instance, all blocking. Here every getChildren for the service names is issued at once and every
+ * getData is issued as soon as its children are known, so the whole lookup takes about as long as the slowest
+ * chain of three round-trips no matter how many services are registered. The instances come in the same order as
+ * from ServiceDiscovery: by service in the order of the service names, then in the order of their ids.
+ */
+public final class ParallelDiscovery<T> {
+
+  private final CuratorFramework client;
+  private final String basePath;
+  private final InstanceSerializer<T> serializer;
+
+  public ParallelDiscovery(CuratorFramework client, String basePath, InstanceSerializer<T> serializer) {
+    this.client = client;
+    this.basePath = basePath;
+    this.serializer = serializer;
+  }
+
+  public List<ServiceInstance<T>> queryForAllInstances() throws Exception {
+    final List<String> serviceNames;
+    try {
+      serviceNames = client.getChildren().forPath(basePath);
+    } catch (KeeperException.NoNodeException e) {
+      return new ArrayList<>();
+    }
+    return queryForInstances(serviceNames);
+  }
+
+  /**
+   * @throws KeeperException.OperationTimeoutException if the answers take longer than the connection timeout.
+   */
+  public List<ServiceInstance<T>> queryForInstances(Collection<String> serviceNames) throws Exception {
+    final Query query = new Query(serviceNames.size());
+    int index = 0;
+    for (String serviceName : serviceNames) {
+      query.getChildren(index++, ZKPaths.makePath(basePath, serviceName));
+    }
+    try {
+      return query.await(client.getZookeeperClient().getConnectionTimeoutMs());
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof Exception) {
+        throw (Exception) e.getCause();
+      }
+      throw e;
+    } catch (TimeoutException e) {
+      throw KeeperException.create(KeeperException.Code.OPERATIONTIMEOUT, basePath);
+    }
+  }
+
+  /**
+   * One lookup. Tracks the number of outstanding background operations and completes once it drops to zero.
+   */
+  private final class Query {
+
+    // per service in the order asked for, one slot per instance in the order of their ids. A slot stays empty for
+    // an instance that went away in between.
+    private final AtomicReferenceArray<AtomicReferenceArray<ServiceInstance<T>>> services;
+    private final CompletableFuture<List<ServiceInstance<T>>> result = new CompletableFuture<>();
+    // starts at one so the query cannot complete while the first operations are still being issued.
+    private final AtomicInteger pending = new AtomicInteger(1);
+
+    Query(int serviceCount) {
+      services = new AtomicReferenceArray<>(serviceCount);
+    }
+
+    void getChildren(int service, String servicePath) throws Exception {
+      pending.incrementAndGet();
+      client.getChildren().inBackground((c, event) -> {
+        try {
+          if (succeeded(event)) {
+            final List<String> ids = event.getChildren();
+            final AtomicReferenceArray<ServiceInstance<T>> slots = new AtomicReferenceArray<>(ids.size());
+            services.set(service, slots);
+            for (int i = 0; i < ids.size(); i++) {
+              getData(slots, i, ZKPaths.makePath(servicePath, ids.get(i)));
+            }
+          }
+        } catch (Exception e) {
+          result.completeExceptionally(e);
+        } finally {
+          done();
+        }
+      }).forPath(servicePath);
+    }
+
+    private void getData(AtomicReferenceArray<ServiceInstance<T>> slots, int slot, String instancePath)
+        throws Exception {
+      pending.incrementAndGet();
+      client.getData().inBackground((c, event) -> {
+        try {
+          if (succeeded(event)) {
+            slots.set(slot, serializer.deserialize(event.getData()));
+          }
+        } catch (Exception e) {
+          result.completeExceptionally(e);
+        } finally {
+          done();
+        }
+      }).forPath(instancePath);
+    }
+
+    // A node that went away between getChildren and getData is simply not part of the answer.
+    private boolean succeeded(CuratorEvent event) {
+      final KeeperException.Code code = KeeperException.Code.get(event.getResultCode());
+      if (code == KeeperException.Code.OK) {
+        return true;
+      }
+      if (code != KeeperException.Code.NONODE) {
+        result.completeExceptionally(KeeperException.create(code, event.getPath()));
+      }
+      return false;
+    }
+
+    private void done() {
+      if (pending.decrementAndGet() == 0) {
+        final List<ServiceInstance<T>> instances = new ArrayList<>();
+        for (int i = 0; i < services.length(); i++) {
+          final AtomicReferenceArray<ServiceInstance<T>> slots = services.get(i);
+          for (int j = 0; slots != null && j < slots.length(); j++) {
+            if (slots.get(j) != null) {
+              instances.add(slots.get(j));
+            }
+          }
+        }
+        result.complete(instances);
+      }
+    }
+
+    List<ServiceInstance<T>> await(long timeoutMs) throws InterruptedException, ExecutionException,
+        TimeoutException {
+      done();
+      return result.get(timeoutMs, TimeUnit.MILLISECONDS);
+    }
+  }
+}
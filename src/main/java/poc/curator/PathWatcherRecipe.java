@@ -2,118 +2,809 @@ package poc.curator;
 
 import org.apache.curator.framework.CuratorFramework;
 import org.apache.curator.framework.recipes.cache.*;
+import org.apache.curator.framework.state.ConnectionState;
 import org.apache.curator.utils.CloseableUtils;
 import org.apache.curator.utils.ZKPaths;
 
 import java.io.Closeable;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * Watches for changes to a certain tree/path.
  *
  * TreeWatch - Watch changes to root and all its sub-trees.
  * PathWatch - Watch only that node level and no sub-tree within it.
+ *
+ * All watches on the same tree/path share one cache.
  */
 public final class PathWatcherRecipe implements Closeable {
 
   private final CuratorFramework client;
-  // tracks all closeables so we can do a clean termination for all of them.
+  private final SharedCacheRegistry<TreeCache> treeCaches;
+  private final SharedCacheRegistry<PathChildrenCache> pathCaches;
+  // watches that are not shared, closed along with this object.
   private final List<Closeable> closeAbles = new ArrayList<>();
 
   interface PathListener {
     void nodeAdded(String path, String data);
     void nodeDeleted(String path, String data);
     void nodeUpdated(String path, String data);
+
+    /**
+     * Called when the connection is suspended, lost or re-established. Events may have been missed in between;
+     * the cache catches up on its own after a reconnect.
+     */
+    default void connectionStateChanged(ConnectionState newState) {
+    }
+
+    /**
+     * Bulk load subscribers get the initial content of the watch in one call, keyed by full path, instead of one
+     * nodeAdded per node. Passed on node by node unless overridden.
+     */
+    default void initialSnapshot(Map<String, byte[]> snapshot) {
+      for (Map.Entry<String, byte[]> entry : snapshot.entrySet()) {
+        final byte[] data = entry.getValue();
+        nodeAdded(entry.getKey(), PayloadCodec.decode(data));
+      }
+    }
+  }
+
+  /**
+   * Gets the ChildData of every change as is: nothing is copied or decoded, use {@link #decode(ChildData)} if the
+   * data is needed as a String. The data of a deleted node may be null.
+   */
+  interface RawPathListener {
+    void nodeAdded(ChildData data);
+    void nodeDeleted(ChildData data);
+    void nodeUpdated(ChildData data);
+
+    default void connectionStateChanged(ConnectionState newState) {
+    }
+
+    default void initialSnapshot(Map<String, byte[]> snapshot) {
+      for (Map.Entry<String, byte[]> entry : snapshot.entrySet()) {
+        nodeAdded(new ChildData(entry.getKey(), null, entry.getValue()));
+      }
+    }
+  }
+
+  // Collects the initial load of one bulk load subscriber and hands it over in one piece.
+  private static final class InitialLoad {
+    private final CompletableFuture<Void> done = new CompletableFuture<>();
+    // guarded by this, null once handed over
+    private Map<String, byte[]> snapshot = new LinkedHashMap<>();
+    // changes that came while the snapshot was being handed over, null before and after.
+    private List<Runnable> pending;
+
+    /**
+     * Adds the node to the snapshot, or passes the change on once the snapshot was handed over.
+     */
+    void put(ChildData data, Runnable passOn) {
+      synchronized (this) {
+        if (snapshot != null) {
+          snapshot.put(data.getPath(), data.getData());
+          return;
+        }
+        if (pending != null) {
+          pending.add(passOn);
+          return;
+        }
+      }
+      passOn.run();
+    }
+
+    void remove(ChildData data, Runnable passOn) {
+      synchronized (this) {
+        if (snapshot != null) {
+          snapshot.remove(data.getPath());
+          return;
+        }
+        if (pending != null) {
+          pending.add(passOn);
+          return;
+        }
+      }
+      passOn.run();
+    }
+
+    // The listener is called without the lock. Changes that come meanwhile are queued and passed on after the
+    // snapshot by this thread, so no later change can overtake it.
+    void finish(RawPathListener pathListener) {
+      final Map<String, byte[]> loaded;
+      synchronized (this) {
+        if (snapshot == null) {
+          return;
+        }
+        loaded = Collections.unmodifiableMap(snapshot);
+        snapshot = null;
+        pending = new ArrayList<>();
+      }
+      try {
+        pathListener.initialSnapshot(loaded);
+      } finally {
+        passPending();
+        done.complete(null);
+      }
+    }
+
+    private void passPending() {
+      while (true) {
+        final List<Runnable> changes;
+        synchronized (this) {
+          if (pending.isEmpty()) {
+            pending = null;
+            return;
+          }
+          changes = pending;
+          pending = new ArrayList<>();
+        }
+        for (Runnable change : changes) {
+          change.run();
+        }
+      }
+    }
   }
 
+  /**
+   * Holds back the events of a new listener until it got what the cache already holds, then passes on only the held
+   * events that are newer than what it got, so joining a running cache neither reorders nor repeats a change.
+   */
+  private static final class ReplayGate {
+    private static final class Held {
+      private final ChildData data;
+      private final boolean removal;
+      private final Runnable event;
+
+      private Held(ChildData data, boolean removal, Runnable event) {
+        this.data = data;
+        this.removal = removal;
+        this.event = event;
+      }
+    }
+
+    // guarded by this, both null once the gate is open.
+    private List<Held> held = new ArrayList<>();
+    // mzxid per path of what the listener got so far.
+    private Map<String, Long> passed = new HashMap<>();
+
+    /**
+     * Passes the event on, or holds it back until {@link #open()}.
+     *
+     * @param data null for events about the connection or the cache itself.
+     */
+    void offer(ChildData data, boolean removal, Runnable event) {
+      synchronized (this) {
+        if (held != null) {
+          held.add(new Held(data, removal, event));
+          return;
+        }
+      }
+      event.run();
+    }
+
+    // the node was passed on to the listener by the replay.
+    synchronized void replayed(ChildData data) {
+      if (data.getStat() != null) {
+        passed.put(data.getPath(), data.getStat().getMzxid());
+      }
+    }
+
+    // The held events are passed on without the lock. Events that come meanwhile are still held and passed on by
+    // this thread, so no new event can overtake them.
+    void open() {
+      while (true) {
+        final List<Runnable> events = new ArrayList<>();
+        synchronized (this) {
+          if (held == null) {
+            return;
+          }
+          if (held.isEmpty()) {
+            held = null;
+            passed = null;
+            return;
+          }
+          for (Held event : held) {
+            if (isNew(event)) {
+              events.add(event.event);
+            }
+          }
+          held = new ArrayList<>();
+        }
+        for (Runnable event : events) {
+          event.run();
+        }
+      }
+    }
+
+    private boolean isNew(Held event) {
+      if (event.data == null || event.data.getStat() == null) {
+        return true;
+      }
+      final String path = event.data.getPath();
+      if (event.removal) {
+        // not passed on if the listener never got the node.
+        return passed.remove(path) != null;
+      }
+      final Long last = passed.get(path);
+      if (last != null && last >= event.data.getStat().getMzxid()) {
+        return false;
+      }
+      passed.put(path, event.data.getStat().getMzxid());
+      return true;
+    }
+  }
+
+  /**
+   * Sits between a tree cache and a listener that already got the content of a {@link SnapshotStore}: once the
+   * cache is warm it compares the loaded nodes with the stored ones by mzxid and passes on only what changed,
+   * afterwards it keeps the store up to date.
+   */
+  private static final class Reconciler implements RawPathListener {
+    private final String root;
+    private final SnapshotStore store;
+    private final RawPathListener pathListener;
+    private final SharedCacheRegistry<TreeCache> caches;
+
+    private Reconciler(String root, SnapshotStore store, RawPathListener pathListener,
+                       SharedCacheRegistry<TreeCache> caches) {
+      this.root = root;
+      this.store = store;
+      this.pathListener = pathListener;
+      this.caches = caches;
+    }
+
+    @Override
+    public void initialSnapshot(Map<String, byte[]> snapshot) {
+      final TreeCache cache = caches.get(root);
+      for (String path : snapshot.keySet()) {
+        // the snapshot has no stats, the cache does and may already be a bit newer.
+        final ChildData data = cache != null ? cache.getCurrentData(path) : null;
+        if (data != null) {
+          nodeAdded(data);
+        }
+      }
+      for (String path : store.snapshot(root).keySet()) {
+        if (!snapshot.containsKey(path)) {
+          nodeDeleted(new ChildData(path, null, store.getData(path)));
+        }
+      }
+    }
+
+    @Override
+    public void nodeAdded(ChildData data) {
+      final long stored = store.getMzxid(data.getPath());
+      if (stored == data.getStat().getMzxid()) {
+        return;
+      }
+      save(data);
+      if (stored == SnapshotStore.NO_NODE) {
+        pathListener.nodeAdded(data);
+      } else {
+        pathListener.nodeUpdated(data);
+      }
+    }
+
+    @Override
+    public void nodeUpdated(ChildData data) {
+      if (store.getMzxid(data.getPath()) != data.getStat().getMzxid()) {
+        save(data);
+        pathListener.nodeUpdated(data);
+      }
+    }
+
+    @Override
+    public void nodeDeleted(ChildData data) {
+      if (store.getMzxid(data.getPath()) == SnapshotStore.NO_NODE) {
+        return;
+      }
+      final byte[] last = store.getData(data.getPath());
+      try {
+        store.remove(data.getPath());
+      } catch (IOException e) {
+        e.printStackTrace();
+      }
+      pathListener.nodeDeleted(data.getData() != null ? data : new ChildData(data.getPath(), data.getStat(), last));
+    }
+
+    @Override
+    public void connectionStateChanged(ConnectionState newState) {
+      pathListener.connectionStateChanged(newState);
+    }
+
+    private void save(ChildData data) {
+      try {
+        store.put(data.getPath(), data.getStat().getMzxid(), data.getData());
+      } catch (IOException e) {
+        // the watch goes on, the node is just reloaded after the next restart.
+        e.printStackTrace();
+      }
+    }
+  }
+
+  // when set, events are dispatched without being logged.
+  private volatile boolean leanDispatch;
+  // when set, listeners of new watches are called on its workers instead of the cache's event thread.
+  private volatile OrderedDispatcher dispatcher;
+  // counts events per watched path when set.
+  private volatile RecipeMetrics metrics;
+
   public PathWatcherRecipe(CuratorFramework client) {
     this.client = client;
+    treeCaches = new SharedCacheRegistry<>((path, initialized) -> {
+      final TreeCache cache = new TreeCache(client, path);
+      cache.getListenable().addListener((c, event) -> {
+        if (event.getType() == TreeCacheEvent.Type.INITIALIZED) {
+          initialized.run();
+        } else if (event.getData() != null) {
+          watchEvent(path);
+        }
+      });
+      return cache;
+    }, TreeCache::start);
+    pathCaches = new SharedCacheRegistry<>((path, initialized) -> {
+      final PathChildrenCache cache = new PathChildrenCache(client, path, true);
+      cache.getListenable().addListener((c, event) -> {
+        if (event.getType() == PathChildrenCacheEvent.Type.INITIALIZED) {
+          initialized.run();
+        } else if (event.getData() != null) {
+          watchEvent(path);
+        }
+      });
+      return cache;
+    }, cache -> cache.start(PathChildrenCache.StartMode.POST_INITIALIZED_EVENT));
+  }
+
+  public synchronized void setMetrics(RecipeMetrics metrics) {
+    this.metrics = metrics;
+    exportQueueDepth();
+  }
+
+  // Called with the lock held.
+  private void exportQueueDepth() {
+    final OrderedDispatcher d = dispatcher;
+    if (metrics != null && d != null) {
+      metrics.queueDepth("dispatcher " + client.getZookeeperClient().getCurrentConnectionString(), d::getQueueDepth);
+    }
+  }
+
+  private void watchEvent(String path) {
+    final RecipeMetrics m = metrics;
+    if (m != null) {
+      m.watchEvent(path);
+    }
+  }
+
+  /**
+   * Lean dispatch: stop logging every event. Combined with {@link RawPathListener}s nothing is allocated per event
+   * on the way from the cache to the listener.
+   */
+  public void setLeanDispatch(boolean leanDispatch) {
+    this.leanDispatch = leanDispatch;
   }
 
+  /**
+   * Calls the listeners of watches added from now on through an {@link OrderedDispatcher}: events for the same
+   * znode keep their order, events for different znodes may be handled in parallel. When a worker falls behind by
+   * more than queueCapacity events the cache's event thread waits for it. The dispatcher is closed with this object.
+   * With metrics set, its queue depth is reported under "dispatcher &lt;connect string&gt;".
+   */
+  public synchronized OrderedDispatcher enableDispatcher(int threads, int queueCapacity, boolean virtualThreads) {
+    if (dispatcher == null) {
+      dispatcher = new OrderedDispatcher(threads, queueCapacity, virtualThreads);
+      exportQueueDepth();
+    }
+    return dispatcher;
+  }
+
+  public OrderedDispatcher getDispatcher() {
+    return dispatcher;
+  }
+
+  /**
+   * Adds a listener that stays until this object is closed. The returned cache is shared with the other listeners
+   * on the same path, do not close it.
+   */
   public TreeCache addTreeWatch(final String path, PathListener listener) throws Exception {
-    final TreeCache myPath = new TreeCache(client, path);
-    myPath.start();
-    addTreeListener(myPath, listener);
-    closeAbles.add(myPath);
-    return myPath;
+    return addTreeWatch(path, decoding(listener));
+  }
+
+  public TreeCache addTreeWatch(final String path, RawPathListener listener) throws Exception {
+    subscribeTree(path, listener);
+    return treeCaches.get(path);
   }
 
+  /**
+   * Adds a listener that stays until this object is closed. The returned cache is shared with the other listeners
+   * on the same path, do not close it.
+   */
   public PathChildrenCache addPathWatch(final String path, PathListener listener) throws Exception {
+    return addPathWatch(path, decoding(listener));
+  }
+
+  public PathChildrenCache addPathWatch(final String path, RawPathListener listener) throws Exception {
+    subscribePath(path, listener);
+    return pathCaches.get(ZKPaths.makePath(Config.CONFIG_PATH, path));
+  }
+
+  /**
+   * Tree watch for very large trees, see {@link CompactTreeWatch}. Not shared with other watches on the same path.
+   */
+  public CompactTreeWatch addCompactTreeWatch(final String path, PathListener listener) throws Exception {
+    final CompactTreeWatch watch = new CompactTreeWatch(client, path, listener);
+    watch.start();
+    synchronized (closeAbles) {
+      closeAbles.add(watch);
+    }
+    return watch;
+  }
+
+  public WatchHandle subscribeTree(final String path, PathListener pathListener) throws Exception {
+    return subscribeTree(path, decoding(pathListener), false);
+  }
+
+  public WatchHandle subscribeTree(final String path, RawPathListener pathListener) throws Exception {
+    return subscribeTree(path, pathListener, false);
+  }
+
+  public WatchHandle subscribeTree(final String path, PathListener pathListener, boolean bulkLoad) throws Exception {
+    return subscribeTree(path, decoding(pathListener), bulkLoad);
+  }
+
+  /**
+   * Adds a listener to the shared tree cache for the given path. A listener joining a cache that is already
+   * running gets the nodes it holds as added. Close the handle to remove the listener again.
+   *
+   * @param bulkLoad hand the initial content over in one {@link RawPathListener#initialSnapshot(Map)} call once the
+   *                 cache is warm instead of node by node; changes after that come one by one as usual.
+   */
+  public WatchHandle subscribeTree(final String path, RawPathListener rawListener, boolean bulkLoad) throws Exception {
+    return treeSubscription(path, dispatching(path, rawListener), bulkLoad);
+  }
+
+  private WatchHandle treeSubscription(final String path, final RawPathListener pathListener, boolean bulkLoad)
+      throws Exception {
+    final InitialLoad load = bulkLoad ? new InitialLoad() : null;
+    final ReplayGate gate = new ReplayGate();
+    final TreeCacheListener listener = treeListener(pathListener, load, gate, () -> treeCaches.markInitialized(path));
+    final boolean created = treeCaches.acquire(path, cache -> cache.getListenable().addListener(listener));
+    final CompletableFuture<Void> initialized = treeCaches.initialized(path);
+    if (!created) {
+      replayTree(treeCaches.get(path), path, pathListener, load, gate);
+    }
+    gate.open();
+    finishWhenInitialized(load, initialized, pathListener);
+    return new WatchHandle(path, () -> {
+      final TreeCache cache = treeCaches.get(path);
+      if (cache != null) {
+        cache.getListenable().removeListener(listener);
+      }
+      treeCaches.release(path);
+    }, load != null ? load.done : initialized);
+  }
+
+  public WatchHandle subscribePath(final String path, PathListener pathListener) throws Exception {
+    return subscribePath(path, decoding(pathListener), false);
+  }
+
+  public WatchHandle subscribePath(final String path, RawPathListener pathListener) throws Exception {
+    return subscribePath(path, pathListener, false);
+  }
+
+  public WatchHandle subscribePath(final String path, PathListener pathListener, boolean bulkLoad) throws Exception {
+    return subscribePath(path, decoding(pathListener), bulkLoad);
+  }
+
+  /**
+   * Adds a listener to the shared cache of the children of the given config path. A listener joining a cache that is
+   * already running gets the children it holds as added. Close the handle to remove the listener again.
+   *
+   * @param bulkLoad see {@link #subscribeTree(String, RawPathListener, boolean)}.
+   */
+  public WatchHandle subscribePath(final String path, RawPathListener rawListener, boolean bulkLoad) throws Exception {
     final String newPath = ZKPaths.makePath(Config.CONFIG_PATH, path);
-    final PathChildrenCache myPath = new PathChildrenCache(client, newPath, true);
-    myPath.start();
-    addPathListener(myPath, listener);
-    closeAbles.add(myPath);
-    return myPath;
+    final RawPathListener pathListener = dispatching(newPath, rawListener);
+    final InitialLoad load = bulkLoad ? new InitialLoad() : null;
+    final ReplayGate gate = new ReplayGate();
+    final PathChildrenCacheListener listener = pathListener(pathListener, load, gate,
+        () -> pathCaches.markInitialized(newPath));
+    final boolean created = pathCaches.acquire(newPath, cache -> cache.getListenable().addListener(listener));
+    final CompletableFuture<Void> initialized = pathCaches.initialized(newPath);
+    if (!created) {
+      for (ChildData data : pathCaches.get(newPath).getCurrentData()) {
+        added(load, pathListener, data);
+        gate.replayed(data);
+      }
+    }
+    gate.open();
+    finishWhenInitialized(load, initialized, pathListener);
+    return new WatchHandle(newPath, () -> {
+      final PathChildrenCache cache = pathCaches.get(newPath);
+      if (cache != null) {
+        cache.getListenable().removeListener(listener);
+      }
+      pathCaches.release(newPath);
+    }, load != null ? load.done : initialized);
+  }
+
+  public WatchHandle subscribeTree(final String path, PathListener pathListener, SnapshotStore store)
+      throws Exception {
+    return subscribeTree(path, decoding(pathListener), store);
+  }
+
+  /**
+   * Tree watch backed by a local snapshot: the listener gets what the store holds for the tree at once as
+   * {@link RawPathListener#initialSnapshot(Map)}, without waiting for ZooKeeper. When the cache is warm, only the
+   * nodes whose mzxid differs from the stored one are passed on, as added, updated or deleted. Changes keep being
+   * written to the store so the next start begins from them. The handle's future completes after that comparison.
+   */
+  public WatchHandle subscribeTree(final String path, RawPathListener rawListener, SnapshotStore store)
+      throws Exception {
+    final RawPathListener pathListener = dispatching(path, rawListener);
+    pathListener.initialSnapshot(Collections.unmodifiableMap(store.snapshot(path)));
+    return treeSubscription(path, new Reconciler(path, store, pathListener, treeCaches), true);
+  }
+
+  private static void replayTree(final TreeCache cache, final String path, final RawPathListener pathListener,
+                                 final InitialLoad load, final ReplayGate gate) {
+    final ChildData data = cache.getCurrentData(path);
+    if (data != null) {
+      added(load, pathListener, data);
+      gate.replayed(data);
+    }
+    final Map<String, ChildData> children = cache.getCurrentChildren(path);
+    if (children != null) {
+      for (String child : children.keySet()) {
+        replayTree(cache, ZKPaths.makePath(path, child), pathListener, load, gate);
+      }
+    }
+  }
+
+  // A cache that was warm before the listener joined sends it no INITIALIZED event, the replay is all there is.
+  // Finishing twice is harmless, so this also covers a listener that joined while the event was being delivered.
+  private static void finishWhenInitialized(InitialLoad load, CompletableFuture<Void> initialized,
+                                            RawPathListener pathListener) {
+    if (load != null) {
+      initialized.thenRun(() -> load.finish(pathListener));
+    }
+  }
+
+  private static void added(InitialLoad load, RawPathListener pathListener, ChildData data) {
+    if (load == null) {
+      pathListener.nodeAdded(data);
+    } else {
+      load.put(data, () -> pathListener.nodeAdded(data));
+    }
+  }
+
+  private static void updated(InitialLoad load, RawPathListener pathListener, ChildData data) {
+    if (load == null) {
+      pathListener.nodeUpdated(data);
+    } else {
+      load.put(data, () -> pathListener.nodeUpdated(data));
+    }
+  }
+
+  private static void deleted(InitialLoad load, RawPathListener pathListener, ChildData data) {
+    if (load == null) {
+      pathListener.nodeDeleted(data);
+    } else {
+      load.remove(data, () -> pathListener.nodeDeleted(data));
+    }
+  }
+
+  /**
+   * @return the data of the given node as UTF-8 String, decompressed if needed, null if there is none.
+   */
+  public static String decode(ChildData data) {
+    return data != null ? PayloadCodec.decode(data.getData()) : null;
+  }
+
+  // Decodes only once per event, and only the event that is passed on.
+  private static RawPathListener decoding(final PathListener pathListener) {
+
+    return new RawPathListener() {
+
+      @Override
+      public void nodeAdded(ChildData data) {
+        pathListener.nodeAdded(data.getPath(), decode(data));
+      }
+
+      @Override
+      public void nodeDeleted(ChildData data) {
+        pathListener.nodeDeleted(data.getPath(), decode(data));
+      }
+
+      @Override
+      public void nodeUpdated(ChildData data) {
+        pathListener.nodeUpdated(data.getPath(), decode(data));
+      }
+
+      @Override
+      public void connectionStateChanged(ConnectionState newState) {
+        pathListener.connectionStateChanged(newState);
+      }
+
+      @Override
+      public void initialSnapshot(Map<String, byte[]> snapshot) {
+        pathListener.initialSnapshot(snapshot);
+      }
+    };
   }
 
-  private void addTreeListener(final TreeCache myPath, final PathListener pathListener) {
+  // Hands every event to the dispatcher keyed by its znode, connection events by the watched path.
+  private RawPathListener dispatching(final String path, final RawPathListener pathListener) {
+    final OrderedDispatcher dispatcher = this.dispatcher;
+    if (dispatcher == null) {
+      return pathListener;
+    }
+
+    return new RawPathListener() {
 
-    final TreeCacheListener listener = new TreeCacheListener() {
+      @Override
+      public void nodeAdded(ChildData data) {
+        dispatch(data.getPath(), () -> pathListener.nodeAdded(data));
+      }
+
+      @Override
+      public void nodeDeleted(ChildData data) {
+        dispatch(data.getPath(), () -> pathListener.nodeDeleted(data));
+      }
+
+      @Override
+      public void nodeUpdated(ChildData data) {
+        dispatch(data.getPath(), () -> pathListener.nodeUpdated(data));
+      }
+
+      @Override
+      public void connectionStateChanged(ConnectionState newState) {
+        dispatch(path, () -> pathListener.connectionStateChanged(newState));
+      }
 
+      // Taken on the event thread: nothing of the watch is dispatched before the snapshot is handed over.
       @Override
-      public void childEvent(CuratorFramework curatorFramework, TreeCacheEvent event) throws Exception {
-        System.out.println("Got Tree event: " + event.getType() + " data:" + new String(event.getData().getData()));
+      public void initialSnapshot(Map<String, byte[]> snapshot) {
+        pathListener.initialSnapshot(snapshot);
+      }
+
+      private void dispatch(String key, Runnable task) {
+        try {
+          dispatcher.dispatch(key, task);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      }
+    };
+  }
+
+  private void log(String kind, Object type, ChildData data) {
+    // connection and initialized events carry no data.
+    System.out.println("Got " + kind + " event: " + type + " data:" + (data != null ? decode(data) : ""));
+  }
+
+  // Curator calls a cache's listeners in no particular order, so each one marks the shared cache as loaded itself
+  // before finishing its own initial load.
+  private TreeCacheListener treeListener(final RawPathListener pathListener, final InitialLoad load,
+                                         final ReplayGate gate, final Runnable initialized) {
+
+    return new TreeCacheListener() {
+
+      @Override
+      public void childEvent(CuratorFramework curatorFramework, TreeCacheEvent event) {
+        gate.offer(event.getData(), event.getType() == TreeCacheEvent.Type.NODE_REMOVED, () -> handle(event));
+      }
+
+      private void handle(TreeCacheEvent event) {
+        if (!leanDispatch) {
+          log("Tree", event.getType(), event.getData());
+        }
         switch (event.getType()) {
 
           case NODE_ADDED:
-            pathListener.nodeAdded(event.getData().getPath(), new String(event.getData().getData()));
+            added(load, pathListener, event.getData());
             break;
           case NODE_UPDATED:
-            pathListener.nodeUpdated(event.getData().getPath(), new String(event.getData().getData()));
+            updated(load, pathListener, event.getData());
             break;
           case NODE_REMOVED:
-            pathListener.nodeDeleted(event.getData().getPath(), new String(event.getData().getData()));
+            deleted(load, pathListener, event.getData());
+            break;
+          case INITIALIZED:
+            initialized.run();
+            if (load != null) {
+              load.finish(pathListener);
+            }
             break;
           case CONNECTION_SUSPENDED:
+            pathListener.connectionStateChanged(ConnectionState.SUSPENDED);
             break;
           case CONNECTION_RECONNECTED:
+            pathListener.connectionStateChanged(ConnectionState.RECONNECTED);
             break;
           case CONNECTION_LOST:
+            pathListener.connectionStateChanged(ConnectionState.LOST);
+            break;
+          default:
             break;
         }
 
       }
     };
-    myPath.getListenable().addListener(listener);
   }
 
-  private void addPathListener(final PathChildrenCache myPath, final PathListener pathListener) {
+  private PathChildrenCacheListener pathListener(final RawPathListener pathListener, final InitialLoad load,
+                                                final ReplayGate gate, final Runnable initialized) {
 
-    final PathChildrenCacheListener listener = new PathChildrenCacheListener() {
+    return new PathChildrenCacheListener() {
 
       @Override
-      public void childEvent(CuratorFramework curatorFramework, PathChildrenCacheEvent event) throws Exception {
-        System.out.println("Got Path event: " + event.getType() + " data:" + new String(event.getData().getData()));
+      public void childEvent(CuratorFramework curatorFramework, PathChildrenCacheEvent event) {
+        gate.offer(event.getData(), event.getType() == PathChildrenCacheEvent.Type.CHILD_REMOVED,
+            () -> handle(event));
+      }
+
+      private void handle(PathChildrenCacheEvent event) {
+        if (!leanDispatch) {
+          log("Path", event.getType(), event.getData());
+        }
         switch (event.getType()) {
 
           case CHILD_ADDED:
-            pathListener.nodeAdded(event.getData().getPath(), new String(event.getData().getData()));
+            added(load, pathListener, event.getData());
             break;
           case CHILD_UPDATED:
-            pathListener.nodeUpdated(event.getData().getPath(), new String(event.getData().getData()));
+            updated(load, pathListener, event.getData());
             break;
           case CHILD_REMOVED:
-            pathListener.nodeDeleted(event.getData().getPath(), new String(event.getData().getData()));
+            deleted(load, pathListener, event.getData());
+            break;
+          case INITIALIZED:
+            initialized.run();
+            if (load != null) {
+              load.finish(pathListener);
+            }
             break;
           case CONNECTION_SUSPENDED:
+            pathListener.connectionStateChanged(ConnectionState.SUSPENDED);
             break;
           case CONNECTION_RECONNECTED:
+            pathListener.connectionStateChanged(ConnectionState.RECONNECTED);
             break;
           case CONNECTION_LOST:
+            pathListener.connectionStateChanged(ConnectionState.LOST);
+            break;
+          default:
             break;
         }
       }
     };
-    myPath.getListenable().addListener(listener);
+  }
+
+  /**
+   * @return the number of listeners currently sharing the tree cache for the given path.
+   */
+  public int treeSubscribers(String path) {
+    return treeCaches.subscribers(path);
   }
 
   @Override
   public void close() throws IOException {
-    for (Closeable closeable : closeAbles) {
-      CloseableUtils.closeQuietly(closeable);
+    treeCaches.close();
+    pathCaches.close();
+    synchronized (closeAbles) {
+      for (Closeable closeable : closeAbles) {
+        CloseableUtils.closeQuietly(closeable);
+      }
+      closeAbles.clear();
+    }
+    if (dispatcher != null) {
+      dispatcher.close();
     }
   }
 }
@@ -0,0 +1,91 @@
+package poc.curator;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Bump allocator for node payloads in off-heap slabs.
+ *
+ * A payload is addressed by a reference that packs the slab index and the offset within the slab into one long,
+ * so the owner only keeps that reference and the length on heap. Freed space is not reused but counted, the
+ * owner copies the live payloads into a fresh arena once enough of it is wasted. Not thread-safe.
+ */
+final class PayloadArena {
+
+  static final long NO_DATA = -1;
+
+  private final int slabSize;
+  private final List<ByteBuffer> slabs = new ArrayList<>();
+  private ByteBuffer current;
+  private long capacity;
+  private long used;
+  private long wasted;
+
+  PayloadArena(int slabSize) {
+    this.slabSize = slabSize;
+  }
+
+  long allocate(byte[] data) {
+    if (data == null) {
+      return NO_DATA;
+    }
+    if (current == null || current.remaining() < data.length) {
+      // payloads larger than a slab get a slab of their own.
+      current = ByteBuffer.allocateDirect(Math.max(slabSize, data.length));
+      slabs.add(current);
+      capacity += current.capacity();
+    }
+    final int offset = current.position();
+    current.put(data);
+    used += data.length;
+    return ((long) (slabs.size() - 1) << 32) | offset;
+  }
+
+  void free(long ref, int length) {
+    if (ref != NO_DATA) {
+      used -= length;
+      wasted += length;
+    }
+  }
+
+  byte[] read(long ref, int length) {
+    if (ref == NO_DATA) {
+      return null;
+    }
+    final byte[] data = new byte[length];
+    final ByteBuffer slab = slabs.get((int) (ref >>> 32)).duplicate();
+    slab.position((int) ref);
+    slab.get(data);
+    return data;
+  }
+
+  /**
+   * @return a read-only view of the payload, only valid until the arena is compacted.
+   */
+  ByteBuffer view(long ref, int length) {
+    if (ref == NO_DATA) {
+      return null;
+    }
+    final ByteBuffer slab = slabs.get((int) (ref >>> 32)).asReadOnlyBuffer();
+    slab.position((int) ref);
+    slab.limit((int) ref + length);
+    return slab.slice();
+  }
+
+  boolean needsCompaction() {
+    return wasted > slabSize && wasted > used;
+  }
+
+  long getCapacity() {
+    return capacity;
+  }
+
+  long getUsed() {
+    return used;
+  }
+
+  long getWasted() {
+    return wasted;
+  }
+}
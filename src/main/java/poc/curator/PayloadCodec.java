@@ -0,0 +1,134 @@
+package poc.curator;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Deflate compression for config znodes, recognised by a header so compressed and plain nodes can be mixed.
+ *
+ * A compressed value is a magic byte, a format byte, the uncompressed length as 4 bytes and the raw deflate data.
+ * The magic byte never occurs in UTF-8, so text written before compression was turned on, or by clients that do
+ * not compress, is read back as is. Values are only stored compressed when that makes them smaller. Every thread
+ * reuses its own deflater and inflater.
+ */
+public final class PayloadCodec {
+
+  // 0xC0 is not valid anywhere in UTF-8, so no text value starts with it.
+  static final byte MAGIC = (byte) 0xC0;
+  static final byte DEFLATE = 1;
+  static final int HEADER = 6;
+  // deflate cannot do better than about 1032 to 1, a header claiming more is corrupt or hostile.
+  private static final int MAX_RATIO = 1032;
+  // no znode holds more than jute.maxbuffer bytes, so no honest value inflates past this.
+  private static final long MAX_LENGTH = Math.min(Integer.MAX_VALUE - 8,
+      (long) Integer.getInteger("jute.maxbuffer", 0xfffff) * MAX_RATIO);
+
+  private static final ThreadLocal<Deflater> DEFLATER = ThreadLocal.withInitial(() -> new Deflater(
+      Deflater.DEFAULT_COMPRESSION, true));
+  private static final ThreadLocal<Inflater> INFLATER = ThreadLocal.withInitial(() -> new Inflater(true));
+
+  private PayloadCodec() {
+  }
+
+  /**
+   * @param minBytes values shorter than this are returned as is, compressing them rarely pays off.
+   * @return the compressed value, or the value itself if compressing does not make it smaller.
+   */
+  public static byte[] compress(byte[] data, int minBytes) {
+    if (data == null || data.length < minBytes || data.length <= HEADER) {
+      return data;
+    }
+    final Deflater deflater = DEFLATER.get();
+    deflater.reset();
+    deflater.setInput(data);
+    deflater.finish();
+    // anything that does not fit in here is not worth storing compressed.
+    final byte[] out = new byte[data.length];
+    int length = HEADER;
+    while (!deflater.finished() && length < out.length) {
+      length += deflater.deflate(out, length, out.length - length);
+    }
+    if (!deflater.finished()) {
+      return data;
+    }
+    out[0] = MAGIC;
+    out[1] = DEFLATE;
+    out[2] = (byte) (data.length >>> 24);
+    out[3] = (byte) (data.length >>> 16);
+    out[4] = (byte) (data.length >>> 8);
+    out[5] = (byte) data.length;
+    return Arrays.copyOf(out, length);
+  }
+
+  public static boolean isCompressed(byte[] data) {
+    return data != null && data.length >= HEADER && data[0] == MAGIC;
+  }
+
+  /**
+   * @return the uncompressed value, or the value itself if it is not compressed.
+   * @throws IllegalArgumentException if the value has the header but cannot be decompressed, or its length is out of
+   *                                  what its compressed size allows.
+   */
+  public static byte[] decompress(byte[] data) {
+    if (!isCompressed(data)) {
+      return data;
+    }
+    if (data[1] != DEFLATE) {
+      throw new IllegalArgumentException("Unsupported compression format " + data[1]);
+    }
+    final int length = ((data[2] & 0xFF) << 24) | ((data[3] & 0xFF) << 16) | ((data[4] & 0xFF) << 8)
+        | (data[5] & 0xFF);
+    // checked before allocating, the header is read from the znode as is.
+    if (length < 0 || length > Math.min(MAX_LENGTH, (long) (data.length - HEADER) * MAX_RATIO)) {
+      throw new IllegalArgumentException("Compressed value claims " + length + " bytes from "
+          + (data.length - HEADER));
+    }
+    final Inflater inflater = INFLATER.get();
+    inflater.reset();
+    inflater.setInput(data, HEADER, data.length - HEADER);
+    final byte[] out = new byte[length];
+    try {
+      int read = 0;
+      while (read < length && !inflater.finished()) {
+        final int n = inflater.inflate(out, read, length - read);
+        if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+          break;
+        }
+        read += n;
+      }
+      if (read != length) {
+        throw new IllegalArgumentException("Truncated compressed value, " + read + " of " + length + " bytes");
+      }
+    } catch (DataFormatException e) {
+      throw new IllegalArgumentException("Corrupt compressed value", e);
+    }
+    return out;
+  }
+
+  /**
+   * @return the value as UTF-8 String, decompressed first if needed. Null for null.
+   */
+  public static String decode(byte[] data) {
+    return data != null ? new String(decompress(data), StandardCharsets.UTF_8) : null;
+  }
+
+  /**
+   * Same as {@link #decode(byte[])} for the read-only buffers handed to a {@link CacheRecipe.ByteCacheListener}. A
+   * plain value is decoded without copying it.
+   */
+  public static String decode(ByteBuffer data) {
+    if (data == null) {
+      return null;
+    }
+    if (data.remaining() < HEADER || data.get(data.position()) != MAGIC) {
+      return StandardCharsets.UTF_8.decode(data.duplicate()).toString();
+    }
+    final byte[] bytes = new byte[data.remaining()];
+    data.duplicate().get(bytes);
+    return decode(bytes);
+  }
+}
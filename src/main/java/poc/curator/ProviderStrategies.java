@@ -0,0 +1,175 @@
+package poc.curator;
+
+import org.apache.curator.x.discovery.ProviderStrategy;
+import org.apache.curator.x.discovery.ServiceInstance;
+import org.apache.curator.x.discovery.details.InstanceProvider;
+import org.apache.curator.x.discovery.strategies.RoundRobinStrategy;
+import poc.curator.services.MyService;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Strategies for picking one instance of a service on the client side.
+ *
+ * None of them lock or allocate when picking: state is kept in atomics and in maps keyed by instance id that
+ * only grow when a new instance shows up.
+ */
+public final class ProviderStrategies {
+
+  /** Key in the service environment that holds the relative weight of an instance. */
+  public static final String WEIGHT = "WEIGHT";
+
+  private static final int DEFAULT_WEIGHT = 1;
+
+  public enum Type {
+    ROUND_ROBIN,
+    RANDOM,
+    LEAST_RECENTLY_USED,
+    WEIGHTED;
+
+    public ProviderStrategy<MyService> create() {
+      switch (this) {
+        case RANDOM:
+          return new RandomStrategy<>();
+        case LEAST_RECENTLY_USED:
+          return new LeastRecentlyUsedStrategy<>();
+        case WEIGHTED:
+          return new WeightedStrategy();
+        default:
+          return new RoundRobinStrategy<>();
+      }
+    }
+  }
+
+  private ProviderStrategies() {
+  }
+
+  /**
+   * Uniform random pick. Curator's RandomStrategy shares one java.util.Random between all threads.
+   */
+  static final class RandomStrategy<T> implements ProviderStrategy<T> {
+
+    @Override
+    public ServiceInstance<T> getInstance(InstanceProvider<T> instanceProvider) throws Exception {
+      final List<ServiceInstance<T>> instances = instanceProvider.getInstances();
+      if (instances.isEmpty()) {
+        return null;
+      }
+      return instances.get(ThreadLocalRandom.current().nextInt(instances.size()));
+    }
+  }
+
+  /**
+   * Picks the instance that was handed out the longest time ago. Instances never handed out go first.
+   */
+  static final class LeastRecentlyUsedStrategy<T> implements ProviderStrategy<T> {
+
+    private final AtomicLong clock = new AtomicLong();
+    private final ConcurrentMap<String, AtomicLong> lastUsed = new ConcurrentHashMap<>();
+
+    @Override
+    public ServiceInstance<T> getInstance(InstanceProvider<T> instanceProvider) throws Exception {
+      final List<ServiceInstance<T>> instances = instanceProvider.getInstances();
+      ServiceInstance<T> oldest = null;
+      AtomicLong oldestStamp = null;
+      for (int i = 0; i < instances.size(); i++) {
+        final ServiceInstance<T> instance = instances.get(i);
+        final AtomicLong stamp = stampFor(instance.getId());
+        if (oldestStamp == null || stamp.get() < oldestStamp.get()) {
+          oldest = instance;
+          oldestStamp = stamp;
+        }
+      }
+      if (oldestStamp != null) {
+        oldestStamp.set(clock.incrementAndGet());
+        prune(lastUsed, instances);
+      }
+      return oldest;
+    }
+
+    private AtomicLong stampFor(String id) {
+      AtomicLong stamp = lastUsed.get(id);
+      if (stamp == null) {
+        lastUsed.putIfAbsent(id, new AtomicLong());
+        stamp = lastUsed.get(id);
+      }
+      return stamp;
+    }
+  }
+
+  /**
+   * Picks an instance with a probability proportional to the {@link #WEIGHT} in its payload environment.
+   * Instances without a (valid) weight count as {@value #DEFAULT_WEIGHT}, a weight of 0 takes the instance out.
+   */
+  static final class WeightedStrategy implements ProviderStrategy<MyService> {
+
+    // the payload is immutable for a given instance id, so parse the weight once.
+    private final ConcurrentMap<String, Integer> weights = new ConcurrentHashMap<>();
+
+    @Override
+    public ServiceInstance<MyService> getInstance(InstanceProvider<MyService> instanceProvider) throws Exception {
+      final List<ServiceInstance<MyService>> instances = instanceProvider.getInstances();
+      long total = 0;
+      for (int i = 0; i < instances.size(); i++) {
+        total += weightOf(instances.get(i));
+      }
+      if (total == 0) {
+        return null;
+      }
+      long pick = ThreadLocalRandom.current().nextLong(total);
+      for (int i = 0; i < instances.size(); i++) {
+        final ServiceInstance<MyService> instance = instances.get(i);
+        pick -= weightOf(instance);
+        if (pick < 0) {
+          prune(weights, instances);
+          return instance;
+        }
+      }
+      return null;
+    }
+
+    private int weightOf(ServiceInstance<MyService> instance) {
+      Integer weight = weights.get(instance.getId());
+      if (weight == null) {
+        weight = parseWeight(instance.getPayload());
+        weights.put(instance.getId(), weight);
+      }
+      return weight;
+    }
+
+    static int parseWeight(MyService payload) {
+      if (payload == null || payload.getEnvironment() == null) {
+        return DEFAULT_WEIGHT;
+      }
+      final String weight = payload.getEnvironment().get(WEIGHT);
+      if (weight == null) {
+        return DEFAULT_WEIGHT;
+      }
+      try {
+        return Math.max(0, Integer.parseInt(weight.trim()));
+      } catch (NumberFormatException e) {
+        return DEFAULT_WEIGHT;
+      }
+    }
+  }
+
+  // Ids of instances that went away are dropped once the map is clearly larger than the live set. The state of the
+  // live ones is kept, so the instances still up are neither reset nor picked out of turn.
+  private static void prune(Map<String, ?> perInstance, List<? extends ServiceInstance<?>> instances) {
+    if (perInstance.size() <= 2 * instances.size() + 16) {
+      return;
+    }
+    final Set<String> live = new HashSet<>();
+    for (int i = 0; i < instances.size(); i++) {
+      live.add(instances.get(i).getId());
+    }
+    perInstance.keySet().retainAll(live);
+  }
+}
@@ -0,0 +1,242 @@
+package poc.curator;
+
+import org.apache.curator.framework.state.ConnectionState;
+import org.apache.zookeeper.KeeperException;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.Closeable;
+import java.lang.management.ManagementFactory;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.DoubleSupplier;
+import java.util.function.IntSupplier;
+import java.util.function.ToDoubleFunction;
+
+/**
+ * Counters and latency histograms for the recipes: how long every operation takes, which errors it ran into,
+ * how many watch events arrive per watched path, how well the caches hit, how often the connection changed
+ * state and how many reads were answered with possibly stale data while the ensemble had no quorum. Recording
+ * never blocks. The recipes only record while metrics are enabled on them, so when they are not the cost is a
+ * null check per operation.
+ */
+public final class RecipeMetrics implements RecipeMetricsMXBean, Closeable {
+
+  private final long startedAt = System.nanoTime();
+  private final Map<String, LatencyHistogram> latencies = new ConcurrentHashMap<>();
+  private final Map<String, LongAdder> errors = new ConcurrentHashMap<>();
+  private final Map<String, LongAdder> watchEvents = new ConcurrentHashMap<>();
+  private final Map<String, DoubleSupplier> hitRatios = new ConcurrentHashMap<>();
+  private final Map<String, IntSupplier> queueDepths = new ConcurrentHashMap<>();
+  private final Map<String, LongAdder> staleReads = new ConcurrentHashMap<>();
+  // filled up front, only read afterwards.
+  private final Map<ConnectionState, LongAdder> connectionStates = new EnumMap<>(ConnectionState.class);
+
+  // guarded by this
+  private ObjectName objectName;
+  private ScheduledExecutorService reporter;
+
+  public RecipeMetrics() {
+    for (ConnectionState state : ConnectionState.values()) {
+      connectionStates.put(state, new LongAdder());
+    }
+  }
+
+  public void record(String operation, long nanos) {
+    latencies.computeIfAbsent(operation, k -> new LatencyHistogram()).record(nanos);
+  }
+
+  /**
+   * Counts the error by its KeeperException code, other exceptions by their class name.
+   */
+  public void error(Exception e) {
+    final String code = e instanceof KeeperException ? ((KeeperException) e).code().name()
+        : e.getClass().getSimpleName();
+    errors.computeIfAbsent(code, k -> new LongAdder()).increment();
+  }
+
+  public void watchEvent(String path) {
+    watchEvents.computeIfAbsent(path, k -> new LongAdder()).increment();
+  }
+
+  /**
+   * Counts a read of the given operation that was answered without quorum, see {@link DegradedMode}.
+   */
+  public void staleRead(String operation) {
+    staleReads.computeIfAbsent(operation, k -> new LongAdder()).increment();
+  }
+
+  public void connectionStateChanged(ConnectionState newState) {
+    connectionStates.get(newState).increment();
+  }
+
+  /**
+   * Reports the hit ratio of a cache under the given name, read whenever the metrics are.
+   */
+  public void cacheHitRatio(String name, DoubleSupplier hitRatio) {
+    hitRatios.put(name, hitRatio);
+  }
+
+  /**
+   * Reports the number of tasks waiting in a queue under the given name, read whenever the metrics are.
+   */
+  public void queueDepth(String name, IntSupplier depth) {
+    queueDepths.put(name, depth);
+  }
+
+  /**
+   * @return the histogram for the given operation, null if it never ran.
+   */
+  public LatencyHistogram getLatency(String operation) {
+    return latencies.get(operation);
+  }
+
+  /**
+   * Registers these metrics with the platform MBean server as poc.curator:type=RecipeMetrics,name=&lt;name&gt;.
+   * They are unregistered on close.
+   */
+  public synchronized void registerMBean(String name) throws JMException {
+    final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+    final ObjectName objectName = new ObjectName("poc.curator:type=RecipeMetrics,name=" + ObjectName.quote(name));
+    server.registerMBean(this, objectName);
+    this.objectName = objectName;
+  }
+
+  /**
+   * Hands these metrics to the reporter every period on a daemon thread, until closed.
+   */
+  public synchronized void startReporting(MetricsReporter metricsReporter, long period, TimeUnit unit) {
+    if (reporter == null) {
+      reporter = Executors.newSingleThreadScheduledExecutor(r -> {
+        final Thread thread = new Thread(r, "RecipeMetrics-reporter");
+        thread.setDaemon(true);
+        return thread;
+      });
+    }
+    reporter.scheduleAtFixedRate(() -> {
+      try {
+        metricsReporter.report(this);
+      } catch (Exception e) {
+        e.printStackTrace();
+      }
+    }, period, period, unit);
+  }
+
+  @Override
+  public long getUptimeMillis() {
+    return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startedAt);
+  }
+
+  @Override
+  public Map<String, Long> getOperationCounts() {
+    final Map<String, Long> counts = new TreeMap<>();
+    latencies.forEach((operation, histogram) -> counts.put(operation, histogram.getCount()));
+    return counts;
+  }
+
+  @Override
+  public Map<String, Double> getMeanLatencyMicros() {
+    return latencyMicros(LatencyHistogram::getMean);
+  }
+
+  @Override
+  public Map<String, Double> getP50LatencyMicros() {
+    return latencyMicros(histogram -> histogram.getPercentile(50));
+  }
+
+  @Override
+  public Map<String, Double> getP99LatencyMicros() {
+    return latencyMicros(histogram -> histogram.getPercentile(99));
+  }
+
+  @Override
+  public Map<String, Double> getMaxLatencyMicros() {
+    return latencyMicros(LatencyHistogram::getMax);
+  }
+
+  private Map<String, Double> latencyMicros(ToDoubleFunction<LatencyHistogram> nanos) {
+    final Map<String, Double> values = new TreeMap<>();
+    latencies.forEach((operation, histogram) -> values.put(operation, nanos.applyAsDouble(histogram) / 1000));
+    return values;
+  }
+
+  @Override
+  public Map<String, Long> getErrorCounts() {
+    return sums(errors);
+  }
+
+  @Override
+  public Map<String, Long> getWatchEventCounts() {
+    return sums(watchEvents);
+  }
+
+  @Override
+  public Map<String, Double> getWatchEventRates() {
+    final double seconds = Math.max(System.nanoTime() - startedAt, 1) / 1e9;
+    final Map<String, Double> rates = new TreeMap<>();
+    watchEvents.forEach((path, events) -> rates.put(path, events.sum() / seconds));
+    return rates;
+  }
+
+  @Override
+  public Map<String, Double> getCacheHitRatios() {
+    final Map<String, Double> ratios = new TreeMap<>();
+    hitRatios.forEach((name, ratio) -> ratios.put(name, ratio.getAsDouble()));
+    return ratios;
+  }
+
+  @Override
+  public Map<String, Integer> getQueueDepths() {
+    final Map<String, Integer> depths = new TreeMap<>();
+    queueDepths.forEach((name, depth) -> depths.put(name, depth.getAsInt()));
+    return depths;
+  }
+
+  @Override
+  public Map<String, Long> getStaleReadCounts() {
+    return sums(staleReads);
+  }
+
+  @Override
+  public Map<String, Long> getConnectionStateCounts() {
+    final Map<String, Long> counts = new TreeMap<>();
+    connectionStates.forEach((state, transitions) -> counts.put(state.name(), transitions.sum()));
+    return counts;
+  }
+
+  private static Map<String, Long> sums(Map<String, LongAdder> counters) {
+    final Map<String, Long> sums = new TreeMap<>();
+    counters.forEach((key, counter) -> sums.put(key, counter.sum()));
+    return sums;
+  }
+
+  @Override
+  public synchronized void close() {
+    if (reporter != null) {
+      reporter.shutdownNow();
+      reporter = null;
+    }
+    if (objectName != null) {
+      try {
+        ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+      } catch (JMException e) {
+        e.printStackTrace();
+      }
+      objectName = null;
+    }
+  }
+
+  @Override
+  public String toString() {
+    return "operations=" + getOperationCounts() + " p99(us)=" + getP99LatencyMicros() + " errors=" + getErrorCounts()
+        + " watchEvents=" + getWatchEventCounts() + " hitRatios=" + getCacheHitRatios()
+        + " queueDepths=" + getQueueDepths() + " staleReads=" + getStaleReadCounts() + " connectionStates=" + getConnectionStateCounts();
+  }
+}
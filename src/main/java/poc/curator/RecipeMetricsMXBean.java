@@ -0,0 +1,38 @@
+package poc.curator;
+
+import java.util.Map;
+
+/**
+ * JMX view of {@link RecipeMetrics}. Maps are keyed by operation name, error code, watched path or connection state.
+ */
+public interface RecipeMetricsMXBean {
+
+  long getUptimeMillis();
+
+  Map<String, Long> getOperationCounts();
+
+  Map<String, Double> getMeanLatencyMicros();
+
+  Map<String, Double> getP50LatencyMicros();
+
+  Map<String, Double> getP99LatencyMicros();
+
+  Map<String, Double> getMaxLatencyMicros();
+
+  Map<String, Long> getErrorCounts();
+
+  Map<String, Long> getWatchEventCounts();
+
+  /** Events per second since the metrics were enabled. */
+  Map<String, Double> getWatchEventRates();
+
+  Map<String, Double> getCacheHitRatios();
+
+  /** Tasks waiting per queue, e.g. of an OrderedDispatcher. */
+  Map<String, Integer> getQueueDepths();
+
+  /** Reads per operation answered by a read-only server or from the last known value. */
+  Map<String, Long> getStaleReadCounts();
+
+  Map<String, Long> getConnectionStateCounts();
+}
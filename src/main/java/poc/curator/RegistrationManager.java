@@ -0,0 +1,270 @@
+package poc.curator;
+
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.api.transaction.CuratorTransaction;
+import org.apache.curator.framework.api.transaction.CuratorTransactionFinal;
+import org.apache.curator.framework.state.ConnectionState;
+import org.apache.curator.framework.state.ConnectionStateListener;
+import org.apache.curator.utils.ZKPaths;
+import org.apache.curator.x.discovery.ServiceInstance;
+import org.apache.curator.x.discovery.ServiceType;
+import org.apache.curator.x.discovery.details.InstanceSerializer;
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Keeps service instances registered as znodes under a base path, dynamic ones as ephemeral nodes, so the
+ * ZooKeeper session is the only heartbeat.
+ *
+ * When the connection comes back (RECONNECTED) or the session is gone (LOST), the instances whose znode is missing
+ * are created again in one multi op as soon as the client is connected. How long that took from the connection
+ * event is kept in {@link #getLastReRegistration()} and, with metrics on, recorded as "reRegister": it bounds how
+ * long the instances were invisible after the client noticed the blip.
+ */
+public final class RegistrationManager<T> implements ConnectionStateListener, Closeable {
+
+  // how often a re-registration is retried when another client creates the same node in between.
+  private static final int RE_REGISTER_ATTEMPTS = 3;
+
+  private final CuratorFramework client;
+  private final String basePath;
+  private final InstanceSerializer<T> serializer;
+  // by instance id, writes are guarded by this so a re-registration does not bring back removed instances.
+  private final Map<String, ServiceInstance<T>> instances = new ConcurrentHashMap<>();
+  private final ExecutorService executor = Executors.newSingleThreadExecutor(r -> {
+    final Thread thread = new Thread(r, "RegistrationManager");
+    thread.setDaemon(true);
+    return thread;
+  });
+  // set while a re-registration is queued, so a burst of state changes triggers only one.
+  private final AtomicBoolean pending = new AtomicBoolean();
+  private volatile BatchResult lastReRegistration;
+  private volatile RecipeMetrics metrics;
+
+  public RegistrationManager(CuratorFramework client, String basePath, InstanceSerializer<T> serializer) {
+    this.client = client;
+    this.basePath = basePath;
+    this.serializer = serializer;
+  }
+
+  public void start() {
+    client.getConnectionStateListenable().addListener(this);
+  }
+
+  /**
+   * Records the re-registration time and errors in these metrics.
+   */
+  public void setMetrics(RecipeMetrics metrics) {
+    this.metrics = metrics;
+  }
+
+  public synchronized void register(ServiceInstance<T> instance) throws Exception {
+    client.create().creatingParentContainersIfNeeded().withMode(createMode(instance))
+        .forPath(instancePath(instance), serializer.serialize(instance));
+    instances.put(instance.getId(), instance);
+  }
+
+  /**
+   * Registers all instances in a single multi op: either all of them become visible or none do. The service nodes
+   * that hold the instances are created first if needed, which is one extra round-trip per new service name.
+   */
+  public synchronized BatchResult register(Collection<ServiceInstance<T>> batch) throws Exception {
+    final long start = System.nanoTime();
+    final Set<String> servicePaths = new HashSet<>();
+    for (ServiceInstance<T> instance : batch) {
+      servicePaths.add(ZKPaths.makePath(basePath, instance.getName()));
+    }
+    for (String servicePath : servicePaths) {
+      client.createContainers(servicePath);
+    }
+    create(batch);
+    for (ServiceInstance<T> instance : batch) {
+      instances.put(instance.getId(), instance);
+    }
+    return new BatchResult(batch.size(), System.nanoTime() - start);
+  }
+
+  /**
+   * Stops re-registering the instance and removes its znode, if it is still there.
+   */
+  public synchronized void unregister(ServiceInstance<T> instance) throws Exception {
+    instances.remove(instance.getId());
+    try {
+      client.delete().guaranteed().forPath(instancePath(instance));
+    } catch (KeeperException.NoNodeException e) {
+      // already gone
+    }
+  }
+
+  /**
+   * Removes all instances in a single multi op. If any of them is already gone nothing is removed and a
+   * {@link KeeperException.NoNodeException} is thrown.
+   */
+  public synchronized BatchResult unregister(Collection<ServiceInstance<T>> batch) throws Exception {
+    final long start = System.nanoTime();
+    CuratorTransaction transaction = client.inTransaction();
+    for (ServiceInstance<T> instance : batch) {
+      transaction = transaction.delete().forPath(instancePath(instance)).and();
+    }
+    commit(transaction, batch.size());
+    for (ServiceInstance<T> instance : batch) {
+      instances.remove(instance.getId());
+    }
+    return new BatchResult(batch.size(), System.nanoTime() - start);
+  }
+
+  public Collection<ServiceInstance<T>> getInstances() {
+    return Collections.unmodifiableCollection(instances.values());
+  }
+
+  /**
+   * Creates the znodes of all registered instances that are missing, in one multi op. Needs one getChildren per
+   * service name to find them.
+   *
+   * @return how many instances were created again and how long it took.
+   */
+  public synchronized BatchResult reRegister() throws Exception {
+    final long start = System.nanoTime();
+    for (int attempt = 1; ; attempt++) {
+      final List<ServiceInstance<T>> missing = findMissing();
+      try {
+        create(missing);
+        return new BatchResult(missing.size(), System.nanoTime() - start);
+      } catch (KeeperException.NodeExistsException e) {
+        // created by someone else since we looked, look again.
+        if (attempt == RE_REGISTER_ATTEMPTS) {
+          throw e;
+        }
+      }
+    }
+  }
+
+  /**
+   * @return the last re-registration after a connection change that had to create instances, timed from the
+   * change. Null if there was none.
+   */
+  public BatchResult getLastReRegistration() {
+    return lastReRegistration;
+  }
+
+  private List<ServiceInstance<T>> findMissing() throws Exception {
+    final Map<String, List<ServiceInstance<T>>> byService = new LinkedHashMap<>();
+    for (ServiceInstance<T> instance : instances.values()) {
+      byService.computeIfAbsent(instance.getName(), k -> new ArrayList<>()).add(instance);
+    }
+    final List<ServiceInstance<T>> missing = new ArrayList<>();
+    for (Map.Entry<String, List<ServiceInstance<T>>> entry : byService.entrySet()) {
+      final String servicePath = ZKPaths.makePath(basePath, entry.getKey());
+      Collection<String> children;
+      try {
+        children = new HashSet<>(client.getChildren().forPath(servicePath));
+      } catch (KeeperException.NoNodeException e) {
+        client.createContainers(servicePath);
+        children = Collections.emptySet();
+      }
+      for (ServiceInstance<T> instance : entry.getValue()) {
+        if (!children.contains(instance.getId())) {
+          missing.add(instance);
+        }
+      }
+    }
+    return missing;
+  }
+
+  private void create(Collection<ServiceInstance<T>> batch) throws Exception {
+    CuratorTransaction transaction = client.inTransaction();
+    for (ServiceInstance<T> instance : batch) {
+      transaction = transaction.create().withMode(createMode(instance))
+          .forPath(instancePath(instance), serializer.serialize(instance)).and();
+    }
+    commit(transaction, batch.size());
+  }
+
+  private static void commit(CuratorTransaction transaction, int size) throws Exception {
+    // an empty multi op is still a round-trip, skip it.
+    if (size > 0) {
+      ((CuratorTransactionFinal) transaction).commit();
+    }
+  }
+
+  private static CreateMode createMode(ServiceInstance<?> instance) {
+    return instance.getServiceType() == ServiceType.DYNAMIC ? CreateMode.EPHEMERAL : CreateMode.PERSISTENT;
+  }
+
+  private String instancePath(ServiceInstance<T> instance) {
+    return ZKPaths.makePath(ZKPaths.makePath(basePath, instance.getName()), instance.getId());
+  }
+
+  @Override
+  public void stateChanged(CuratorFramework client, ConnectionState newState) {
+    if (newState == ConnectionState.RECONNECTED || newState == ConnectionState.LOST) {
+      scheduleReRegister(System.nanoTime());
+    }
+  }
+
+  private void scheduleReRegister(long since) {
+    if (!pending.compareAndSet(false, true)) {
+      return;
+    }
+    executor.execute(() -> {
+      try {
+        // after LOST this waits for the new session.
+        client.blockUntilConnected();
+        pending.set(false);
+        final BatchResult result = reRegister();
+        // nothing was missing, so nothing was invisible.
+        if (result.getCount() > 0) {
+          final long elapsed = System.nanoTime() - since;
+          lastReRegistration = new BatchResult(result.getCount(), elapsed);
+          final RecipeMetrics m = metrics;
+          if (m != null) {
+            m.record("reRegister", elapsed);
+          }
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      } catch (Exception e) {
+        // the next RECONNECTED tries again.
+        pending.set(false);
+        final RecipeMetrics m = metrics;
+        if (m != null) {
+          m.error(e);
+        }
+        e.printStackTrace();
+      }
+    });
+  }
+
+  /**
+   * Stops re-registering and removes the instances still registered, persistent ones included, the way Curator's
+   * ServiceDiscovery does when closed. An instance that cannot be removed is logged and the rest are still removed.
+   */
+  @Override
+  public void close() {
+    client.getConnectionStateListenable().removeListener(this);
+    executor.shutdownNow();
+    synchronized (this) {
+      for (ServiceInstance<T> instance : new ArrayList<>(instances.values())) {
+        try {
+          unregister(instance);
+        } catch (Exception e) {
+          e.printStackTrace();
+        }
+      }
+    }
+  }
+}
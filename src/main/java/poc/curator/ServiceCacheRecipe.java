@@ -0,0 +1,75 @@
+package poc.curator;
+
+import org.apache.curator.utils.CloseableUtils;
+import org.apache.curator.x.discovery.ServiceCache;
+import org.apache.curator.x.discovery.ServiceDiscovery;
+import org.apache.curator.x.discovery.ServiceInstance;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Keeps a watch driven local copy of the instances of every service that has been looked up.
+ *
+ * The first lookup for a service name builds and starts a Curator ServiceCache for it (one initial load),
+ * every later lookup is answered from memory. The cache is kept up to date by ZooKeeper watches on the
+ * service path, so registrations from any client show up without a query.
+ */
+public final class ServiceCacheRecipe<T> implements Closeable {
+
+  private final ServiceDiscovery<T> serviceDiscovery;
+  private final ConcurrentMap<String, ServiceCache<T>> serviceCaches = new ConcurrentHashMap<>();
+  private volatile boolean closed;
+
+  public ServiceCacheRecipe(ServiceDiscovery<T> serviceDiscovery) {
+    this.serviceDiscovery = serviceDiscovery;
+  }
+
+  public Collection<ServiceInstance<T>> getInstances(final String serviceName) throws Exception {
+    return getCache(serviceName).getInstances();
+  }
+
+  /**
+   * @throws IllegalStateException once closed, rather than starting a cache nobody would close.
+   */
+  public ServiceCache<T> getCache(final String serviceName) throws Exception {
+    ensureOpen();
+    ServiceCache<T> cache = serviceCaches.get(serviceName);
+    if (cache == null) {
+      final ServiceCache<T> newCache = serviceDiscovery.serviceCacheBuilder().name(serviceName).build();
+      newCache.start();
+      cache = serviceCaches.putIfAbsent(serviceName, newCache);
+      if (cache == null) {
+        cache = newCache;
+        if (closed) {
+          // closed while it was starting, after close went through the caches.
+          serviceCaches.remove(serviceName, newCache);
+          CloseableUtils.closeQuietly(newCache);
+          ensureOpen();
+        }
+      } else {
+        // someone else got there first, use theirs.
+        CloseableUtils.closeQuietly(newCache);
+      }
+    }
+    return cache;
+  }
+
+  private void ensureOpen() {
+    if (closed) {
+      throw new IllegalStateException("Service caches are closed");
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    closed = true;
+    for (ServiceCache<T> cache : serviceCaches.values()) {
+      CloseableUtils.closeQuietly(cache);
+    }
+    serviceCaches.clear();
+  }
+}
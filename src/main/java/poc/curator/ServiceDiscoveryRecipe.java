@@ -2,11 +2,14 @@ package poc.curator;
 
 import org.apache.curator.framework.CuratorFramework;
 import org.apache.curator.framework.CuratorFrameworkFactory;
+import org.apache.curator.framework.imps.CuratorFrameworkState;
 import org.apache.curator.retry.ExponentialBackoffRetry;
 import org.apache.curator.utils.CloseableUtils;
 import org.apache.curator.x.discovery.*;
+import org.apache.curator.x.discovery.details.InstanceSerializer;
 import org.apache.curator.x.discovery.details.JsonInstanceSerializer;
 
+import javax.management.JMException;
 import java.io.Closeable;
 import java.io.IOException;
 import java.net.InetAddress;
@@ -20,96 +23,250 @@ import java.util.*;
 public final class ServiceDiscoveryRecipe {
 
   private final CuratorFramework curatorClient;
+  // false for a client shared with other code, which then closes it.
+  private final boolean ownsClient;
   private final ServiceDiscovery<InstanceDetails> serviceDiscovery;
+  // false for a discovery shared with other code, which then starts and closes it.
+  private final boolean ownsDiscovery;
+  private final ParallelDiscovery<InstanceDetails> parallelDiscovery;
   private final Map<String, ServiceInstance<InstanceDetails>> serviceInstances;
+  // null until enableMetrics is called, nothing is measured until then.
+  private volatile RecipeMetrics metrics;
 
   // tracks all closeables so we can do a clean termination for all of them.
   private final List<Closeable> closeAbles = new ArrayList<>();
+  // set by start, which runs on first use if it was not called.
+  private volatile boolean started;
 
   public ServiceDiscoveryRecipe(String zookeeperAddress) throws Exception {
-    serviceInstances = new HashMap<>();
-    System.out.println("Connecting to ZooKeeper: " + zookeeperAddress);
+    this(zookeeperAddress, new JsonInstanceSerializer<>(InstanceDetails.class));
+  }
 
-    // Specify retry mechanism in case of recoverable errors from ZooKeeper.
-    curatorClient = CuratorFrameworkFactory.newClient(zookeeperAddress,
-        new ExponentialBackoffRetry(1000, 3));
+  /**
+   * @param serializer how service instances are stored in their znodes.
+   */
+  public ServiceDiscoveryRecipe(String zookeeperAddress, InstanceSerializer<InstanceDetails> serializer)
+      throws Exception {
+    this(newClient(zookeeperAddress), true, null, serializer);
+  }
 
-    // Payload Serializer
-    final JsonInstanceSerializer<InstanceDetails> serializer = new JsonInstanceSerializer<>(InstanceDetails.class);
+  /**
+   * Uses a client created elsewhere, e.g. the one of a {@link ZooKeeperRecipes} from
+   * {@link ZooKeeperRecipes#getCuratorClient()}, instead of opening a session of its own. The client is started if it
+   * is not yet, but left open on {@link #close()}.
+   *
+   * @param serviceDiscovery discovery to share, started and closed by its owner and built on the same client with a
+   *                         serializer that reads the same format. Null to build one.
+   */
+  public ServiceDiscoveryRecipe(CuratorFramework client, ServiceDiscovery<InstanceDetails> serviceDiscovery,
+                                InstanceSerializer<InstanceDetails> serializer) throws Exception {
+    this(client, false, serviceDiscovery, serializer);
+  }
+
+  private ServiceDiscoveryRecipe(CuratorFramework client, boolean ownsClient,
+                                 ServiceDiscovery<InstanceDetails> sharedDiscovery,
+                                 InstanceSerializer<InstanceDetails> serializer) throws Exception {
+    serviceInstances = new HashMap<>();
+    curatorClient = client;
+    this.ownsClient = ownsClient;
 
     // Service Discovery
-    serviceDiscovery = ServiceDiscoveryBuilder.builder(InstanceDetails.class)
+    ownsDiscovery = sharedDiscovery == null;
+    serviceDiscovery = ownsDiscovery ? ServiceDiscoveryBuilder.builder(InstanceDetails.class)
         .client(curatorClient)
         .basePath(Config.SERVICES_PATH)
         .serializer(serializer)
-        .build();
+        .build() : sharedDiscovery;
+    parallelDiscovery = new ParallelDiscovery<>(curatorClient, Config.SERVICES_PATH, serializer);
+  }
+
+  private static CuratorFramework newClient(String zookeeperAddress) {
+    System.out.println("Connecting to ZooKeeper: " + zookeeperAddress);
+
+    // Specify retry mechanism in case of recoverable errors from ZooKeeper.
+    return CuratorFrameworkFactory.newClient(zookeeperAddress,
+        new ExponentialBackoffRetry(1000, 3));
   }
 
   public void registerService(String serviceName, int servicePort) throws UnknownHostException, Exception {
-    // Scheme, address and port - This will yield an address of form: http://<ip>:port/
-    final UriSpec uriSpec = new UriSpec("{scheme}://{address}:{port}");
+    ensureStarted();
+    final long start = startTimer();
+    try {
+      // Scheme, address and port - This will yield an address of form: http://<ip>:port/
+      final UriSpec uriSpec = new UriSpec("{scheme}://{address}:{port}");
 
-    final ServiceInstance<InstanceDetails> thisInstance = ServiceInstance.<InstanceDetails>builder().name(serviceName)
-        .uriSpec(uriSpec)
-        // Pass the IP address the instance is available on
-        .address(InetAddress.getLocalHost().getHostAddress())
-        // Pass the Port the instance is available on
-        .port(servicePort)
-        // Pass other Instance details that you want to expose for other services to discover
-        .payload(new InstanceDetails(serviceName))
-        .build();
+      final ServiceInstance<InstanceDetails> thisInstance = ServiceInstance.<InstanceDetails>builder().name(serviceName)
+          .uriSpec(uriSpec)
+          // Pass the IP address the instance is available on
+          .address(InetAddress.getLocalHost().getHostAddress())
+          // Pass the Port the instance is available on
+          .port(servicePort)
+          // Pass other Instance details that you want to expose for other services to discover
+          .payload(new InstanceDetails(serviceName))
+          .build();
 
-    serviceDiscovery.registerService(thisInstance);
+      serviceDiscovery.registerService(thisInstance);
 
-    // track it so we can unregister this one.
-    serviceInstances.put(serviceName + servicePort, thisInstance);
+      // track it so we can unregister this one.
+      serviceInstances.put(serviceName + servicePort, thisInstance);
+    } catch (Exception e) {
+      failed(e);
+      throw e;
+    } finally {
+      stopTimer("registerService", start);
+    }
   }
 
   public void unregisterService(final String serviceName, final String servicePort) throws Exception {
-    final ServiceInstance<InstanceDetails> thisInstance = serviceInstances.get(serviceName + servicePort);
-    if (thisInstance != null) {
-      serviceDiscovery.unregisterService(thisInstance);
+    ensureStarted();
+    final long start = startTimer();
+    try {
+      final ServiceInstance<InstanceDetails> thisInstance = serviceInstances.get(serviceName + servicePort);
+      if (thisInstance != null) {
+        serviceDiscovery.unregisterService(thisInstance);
+      }
+    } catch (Exception e) {
+      failed(e);
+      throw e;
+    } finally {
+      stopTimer("unregisterService", start);
     }
   }
 
   public void discover(final String serviceName) throws Exception {
-    System.out.println("Looking up " + serviceName);
-    final Collection<ServiceInstance<InstanceDetails>> instances = serviceDiscovery.queryForInstances(serviceName);
+    ensureStarted();
+    final long start = startTimer();
+    try {
+      System.out.println("Looking up " + serviceName);
+      final Collection<ServiceInstance<InstanceDetails>> instances = serviceDiscovery.queryForInstances(serviceName);
 
-    for (ServiceInstance<InstanceDetails> instance : instances) {
-      outputInstance(instance);
+      for (ServiceInstance<InstanceDetails> instance : instances) {
+        outputInstance(instance);
+      }
+    } catch (Exception e) {
+      failed(e);
+      throw e;
+    } finally {
+      stopTimer("discover", start);
     }
   }
 
   public void discoverAll() throws Exception {
-    final Collection<String> serviceNames = serviceDiscovery.queryForNames();
+    ensureStarted();
+    final long start = startTimer();
+    try {
+      final Collection<String> serviceNames = serviceDiscovery.queryForNames();
 
-    for (String serviceName : serviceNames) {
-      final Collection<ServiceInstance<InstanceDetails>> instances = serviceDiscovery.queryForInstances(serviceName);
-      System.out.println("Looking up " + serviceName);
+      for (String serviceName : serviceNames) {
+        final Collection<ServiceInstance<InstanceDetails>> instances = serviceDiscovery.queryForInstances(serviceName);
+        System.out.println("Looking up " + serviceName);
+        for (ServiceInstance<InstanceDetails> instance : instances) {
+          outputInstance(instance);
+        }
+      }
+    } catch (Exception e) {
+      failed(e);
+      throw e;
+    } finally {
+      stopTimer("discoverAll", start);
+    }
+  }
+
+  public void discoverAllParallel() throws Exception {
+    ensureStarted();
+    final long start = startTimer();
+    try {
+      // already grouped by service, in the order discoverAll prints them.
+      final List<ServiceInstance<InstanceDetails>> instances = parallelDiscovery.queryForAllInstances();
+      String serviceName = null;
       for (ServiceInstance<InstanceDetails> instance : instances) {
+        if (!instance.getName().equals(serviceName)) {
+          serviceName = instance.getName();
+          System.out.println("Looking up " + serviceName);
+        }
         outputInstance(instance);
       }
+    } catch (Exception e) {
+      failed(e);
+      throw e;
+    } finally {
+      stopTimer("discoverAllParallel", start);
+    }
+  }
+
+  /**
+   * Starts measuring the operations of this object, see {@link RecipeMetrics}. The metrics are registered as MBean
+   * under the given name, unless it is null, and closed along with this object.
+   */
+  public synchronized RecipeMetrics enableMetrics(String name) throws JMException {
+    if (metrics == null) {
+      final RecipeMetrics m = new RecipeMetrics();
+      if (name != null) {
+        m.registerMBean(name);
+      }
+      curatorClient.getConnectionStateListenable().addListener((client, newState) -> m.connectionStateChanged(newState));
+      metrics = m;
+    }
+    return metrics;
+  }
+
+  // Start of a timed operation, 0 while metrics are off.
+  private long startTimer() {
+    return metrics != null ? System.nanoTime() : 0;
+  }
+
+  private void stopTimer(String operation, long start) {
+    final RecipeMetrics m = metrics;
+    if (m != null && start != 0) {
+      m.record(operation, System.nanoTime() - start);
+    }
+  }
+
+  private void failed(Exception e) {
+    final RecipeMetrics m = metrics;
+    if (m != null) {
+      m.error(e);
     }
   }
 
-  public void start() {
+  /**
+   * Connects to ZooKeeper. Optional: the first operation calls it, so a short-lived program that does not touch
+   * ZooKeeper never pays for the connection. Only the first call has an effect.
+   */
+  public synchronized void start() {
+    if (started) {
+      return;
+    }
     try {
-      curatorClient.start();
-      closeAbles.add(curatorClient);
-      serviceDiscovery.start();
-      // add to top so we can close it first.
-      closeAbles.add(0, serviceDiscovery);
+      if (curatorClient.getState() == CuratorFrameworkState.LATENT) {
+        curatorClient.start();
+      }
+      if (ownsClient) {
+        closeAbles.add(curatorClient);
+      }
+      if (ownsDiscovery) {
+        serviceDiscovery.start();
+        // add to top so we can close it first.
+        closeAbles.add(0, serviceDiscovery);
+      }
+      started = true;
     } catch (Exception e) {
       throw new RuntimeException("Error starting Curator Framework/Discovery", e);
     }
   }
 
+  private void ensureStarted() {
+    if (!started) {
+      start();
+    }
+  }
+
   public void close() {
     // Close all
     for (Closeable closeable : closeAbles) {
       CloseableUtils.closeQuietly(closeable);
     }
+    CloseableUtils.closeQuietly(metrics);
   }
 
   private static void outputInstance(ServiceInstance<InstanceDetails> instance) {
@@ -0,0 +1,61 @@
+package poc.curator;
+
+import org.apache.curator.utils.CloseableUtils;
+import org.apache.curator.x.discovery.ServiceDiscovery;
+import org.apache.curator.x.discovery.ServiceProvider;
+import poc.curator.services.MyService;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Hands out one started ServiceProvider per service name and strategy, so callers can keep asking for a
+ * provider instead of holding on to it.
+ */
+public final class ServiceProviderRecipe implements Closeable {
+
+  private final ServiceDiscovery<MyService> serviceDiscovery;
+  private final Map<ProviderStrategies.Type, ConcurrentMap<String, ServiceProvider<MyService>>> providers =
+      new EnumMap<>(ProviderStrategies.Type.class);
+
+  public ServiceProviderRecipe(ServiceDiscovery<MyService> serviceDiscovery) {
+    this.serviceDiscovery = serviceDiscovery;
+    // filled up front so the map itself is never modified afterwards.
+    for (ProviderStrategies.Type type : ProviderStrategies.Type.values()) {
+      providers.put(type, new ConcurrentHashMap<>());
+    }
+  }
+
+  public ServiceProvider<MyService> getProvider(String serviceName, ProviderStrategies.Type type) throws Exception {
+    final ConcurrentMap<String, ServiceProvider<MyService>> byName = providers.get(type);
+    ServiceProvider<MyService> provider = byName.get(serviceName);
+    if (provider == null) {
+      final ServiceProvider<MyService> newProvider = serviceDiscovery.serviceProviderBuilder()
+          .serviceName(serviceName)
+          .providerStrategy(type.create())
+          .build();
+      newProvider.start();
+      provider = byName.putIfAbsent(serviceName, newProvider);
+      if (provider == null) {
+        provider = newProvider;
+      } else {
+        CloseableUtils.closeQuietly(newProvider);
+      }
+    }
+    return provider;
+  }
+
+  @Override
+  public void close() throws IOException {
+    for (ConcurrentMap<String, ServiceProvider<MyService>> byName : providers.values()) {
+      for (ServiceProvider<MyService> provider : byName.values()) {
+        CloseableUtils.closeQuietly(provider);
+      }
+      byName.clear();
+    }
+  }
+}
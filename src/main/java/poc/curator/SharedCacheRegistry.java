@@ -0,0 +1,169 @@
+package poc.curator;
+
+import org.apache.curator.utils.CloseableUtils;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Reference counted caches, one per path, so every watch on a path shares one cache: one set of ZooKeeper
+ * watches, one initial load and one copy of the data. A cache is created and started for the first subscriber
+ * and closed when the last one is released.
+ */
+final class SharedCacheRegistry<C extends Closeable> implements Closeable {
+
+  interface CacheFactory<C> {
+    /**
+     * @param initialized to be run once the new cache has loaded its initial data.
+     */
+    C create(String path, Runnable initialized);
+  }
+
+  interface CacheStarter<C> {
+    void start(C cache) throws Exception;
+  }
+
+  interface Attacher<C> {
+    void attach(C cache) throws Exception;
+  }
+
+  private final CacheFactory<C> factory;
+  private final CacheStarter<C> starter;
+  // guarded by this
+  private final Map<String, Entry<C>> caches = new HashMap<>();
+
+  private static final class Entry<C> {
+    private final CompletableFuture<Void> initialized = new CompletableFuture<>();
+    // completes once the cache is started, exceptionally if it could not be.
+    private final CompletableFuture<Void> started = new CompletableFuture<>();
+    private C cache;
+    private int subscribers;
+  }
+
+  SharedCacheRegistry(CacheFactory<C> factory, CacheStarter<C> starter) {
+    this.factory = factory;
+    this.starter = starter;
+  }
+
+  /**
+   * Subscribes to the cache for the given path. The attacher runs before a new cache is started so a listener it
+   * adds sees the initial load. Starting may block on ZooKeeper, so it happens outside the lock: subscribers of other
+   * paths go on, subscribers of the same path wait until it is started.
+   *
+   * @return true if the cache was created for this subscriber, false if it was already running.
+   */
+  boolean acquire(String path, Attacher<C> attacher) throws Exception {
+    final Entry<C> entry;
+    final boolean created;
+    synchronized (this) {
+      final Entry<C> running = caches.get(path);
+      created = running == null;
+      if (created) {
+        entry = new Entry<>();
+        entry.cache = factory.create(path, () -> entry.initialized.complete(null));
+        caches.put(path, entry);
+      } else {
+        entry = running;
+      }
+      try {
+        attacher.attach(entry.cache);
+      } catch (Exception e) {
+        if (created) {
+          caches.remove(path);
+          CloseableUtils.closeQuietly(entry.cache);
+        }
+        throw e;
+      }
+      entry.subscribers++;
+    }
+    if (!created) {
+      try {
+        entry.started.get();
+      } catch (ExecutionException e) {
+        throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+      }
+      return false;
+    }
+    try {
+      starter.start(entry.cache);
+    } catch (Exception e) {
+      synchronized (this) {
+        if (caches.get(path) == entry) {
+          caches.remove(path);
+        }
+      }
+      entry.started.completeExceptionally(e);
+      CloseableUtils.closeQuietly(entry.cache);
+      throw e;
+    }
+    entry.started.complete(null);
+    return true;
+  }
+
+  /**
+   * @return the running cache for the given path, null if nobody subscribed to it.
+   */
+  synchronized C get(String path) {
+    final Entry<C> entry = caches.get(path);
+    return entry != null ? entry.cache : null;
+  }
+
+  /**
+   * @return a future that completes once the cache for the given path has loaded its initial data, null if nobody
+   * subscribed to it.
+   */
+  synchronized CompletableFuture<Void> initialized(String path) {
+    final Entry<C> entry = caches.get(path);
+    return entry != null ? entry.initialized : null;
+  }
+
+  /**
+   * Marks the cache for the given path as loaded. For the subscribers' own listeners, which may hear of the initial
+   * load before the cache's own listener does. The future is completed outside the lock, as what depends on it
+   * calls listeners.
+   */
+  void markInitialized(String path) {
+    final Entry<C> entry;
+    synchronized (this) {
+      entry = caches.get(path);
+    }
+    if (entry != null) {
+      entry.initialized.complete(null);
+    }
+  }
+
+  void release(String path) {
+    final Entry<C> entry;
+    synchronized (this) {
+      entry = caches.get(path);
+      if (entry == null || --entry.subscribers > 0) {
+        return;
+      }
+      caches.remove(path);
+    }
+    CloseableUtils.closeQuietly(entry.cache);
+  }
+
+  synchronized int subscribers(String path) {
+    final Entry<C> entry = caches.get(path);
+    return entry != null ? entry.subscribers : 0;
+  }
+
+  @Override
+  public void close() throws IOException {
+    final List<Entry<C>> entries;
+    synchronized (this) {
+      entries = new ArrayList<>(caches.values());
+      caches.clear();
+    }
+    for (Entry<C> entry : entries) {
+      CloseableUtils.closeQuietly(entry.cache);
+    }
+  }
+}
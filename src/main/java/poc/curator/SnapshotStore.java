@@ -0,0 +1,229 @@
+package poc.curator;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Local copy of watched znodes that survives a restart, so a watch can serve the last known config right away
+ * instead of waiting for the whole subtree to be reloaded from ZooKeeper.
+ *
+ * The file is an append-only log of puts and removes, each with the mzxid of the znode version it holds. At
+ * startup the log is memory-mapped and replayed; payloads loaded that way are read straight from the mapping.
+ * Once the log holds more than twice as many records as there are live nodes it is rewritten with one record per
+ * node. Writes are not forced to disk: losing the tail of the log only means those nodes are reloaded from
+ * ZooKeeper. A torn last record is dropped when the file is opened.
+ */
+public final class SnapshotStore implements Closeable {
+
+  public static final long NO_NODE = -1;
+
+  private static final int MAGIC = 0x5A4B534E;
+  private static final int VERSION = 1;
+  private static final int HEADER_BYTES = 8;
+  private static final byte PUT = 1;
+  private static final byte REMOVE = 2;
+  // op, mzxid, path length, data length
+  private static final int RECORD_OVERHEAD = 1 + 8 + 4 + 4;
+  private static final int MIN_COMPACT_RECORDS = 1000;
+
+  private final Path file;
+  // guarded by this
+  private final Map<String, Entry> entries = new HashMap<>();
+  private FileChannel channel;
+  private MappedByteBuffer mapped;
+  private int records;
+
+  private static final class Entry {
+    private final long mzxid;
+    // either the data itself or its place in the mapped file.
+    private final byte[] data;
+    private final int offset;
+    private final int length;
+
+    private Entry(long mzxid, byte[] data, int offset, int length) {
+      this.mzxid = mzxid;
+      this.data = data;
+      this.offset = offset;
+      this.length = length;
+    }
+  }
+
+  /**
+   * Opens the snapshot in the given file, creating it if needed.
+   */
+  public SnapshotStore(Path file) throws IOException {
+    this.file = file;
+    load();
+  }
+
+  private void load() throws IOException {
+    channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    entries.clear();
+    records = 0;
+    final long size = channel.size();
+    mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+    if (size < HEADER_BYTES || mapped.getInt(0) != MAGIC || mapped.getInt(4) != VERSION) {
+      // empty, foreign or outdated file: start over.
+      channel.truncate(0);
+      final ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+      header.putInt(MAGIC).putInt(VERSION).flip();
+      channel.write(header, 0);
+      channel.position(HEADER_BYTES);
+      return;
+    }
+    int position = HEADER_BYTES;
+    while (position + RECORD_OVERHEAD <= size) {
+      final byte op = mapped.get(position);
+      final long mzxid = mapped.getLong(position + 1);
+      final int pathLength = mapped.getInt(position + 9);
+      if ((op != PUT && op != REMOVE) || pathLength < 0 || position + RECORD_OVERHEAD + pathLength > size) {
+        break;
+      }
+      final int dataLength = mapped.getInt(position + 13 + pathLength);
+      final int dataOffset = position + RECORD_OVERHEAD + pathLength;
+      if (dataLength < -1 || dataOffset + Math.max(dataLength, 0) > size) {
+        break;
+      }
+      final byte[] path = new byte[pathLength];
+      final ByteBuffer view = mapped.duplicate();
+      view.position(position + 13);
+      view.get(path);
+      final String name = new String(path, StandardCharsets.UTF_8);
+      if (op == PUT) {
+        entries.put(name, new Entry(mzxid, null, dataOffset, dataLength));
+      } else {
+        entries.remove(name);
+      }
+      records++;
+      position = dataOffset + Math.max(dataLength, 0);
+    }
+    if (position < size) {
+      channel.truncate(position);
+    }
+    channel.position(position);
+  }
+
+  /**
+   * @return the stored data of the node at the given full path, null if it is not stored or has no data.
+   */
+  public synchronized byte[] getData(String path) {
+    final Entry entry = entries.get(path);
+    return entry != null ? read(entry) : null;
+  }
+
+  /**
+   * @return the mzxid of the stored version of the given node, {@link #NO_NODE} if it is not stored.
+   */
+  public synchronized long getMzxid(String path) {
+    final Entry entry = entries.get(path);
+    return entry != null ? entry.mzxid : NO_NODE;
+  }
+
+  /**
+   * @return the stored nodes at and below the given full path with their data, parents before children.
+   */
+  public synchronized Map<String, byte[]> snapshot(String root) {
+    final Map<String, byte[]> snapshot = new TreeMap<>();
+    for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+      if (isWithin(entry.getKey(), root)) {
+        snapshot.put(entry.getKey(), read(entry.getValue()));
+      }
+    }
+    return snapshot;
+  }
+
+  static boolean isWithin(String path, String root) {
+    return path.equals(root) || path.startsWith(root.endsWith("/") ? root : root + "/");
+  }
+
+  private byte[] read(Entry entry) {
+    if (entry.data != null || entry.length < 0) {
+      return entry.data;
+    }
+    final byte[] data = new byte[entry.length];
+    final ByteBuffer view = mapped.duplicate();
+    view.position(entry.offset);
+    view.get(data);
+    return data;
+  }
+
+  public synchronized void put(String path, long mzxid, byte[] data) throws IOException {
+    append(PUT, path, mzxid, data);
+    entries.put(path, new Entry(mzxid, data, -1, data != null ? data.length : -1));
+    compactIfNeeded();
+  }
+
+  public synchronized void remove(String path) throws IOException {
+    if (entries.remove(path) != null) {
+      append(REMOVE, path, NO_NODE, null);
+      compactIfNeeded();
+    }
+  }
+
+  private void append(byte op, String path, long mzxid, byte[] data) throws IOException {
+    final byte[] name = path.getBytes(StandardCharsets.UTF_8);
+    final ByteBuffer record = ByteBuffer.allocate(RECORD_OVERHEAD + name.length + (data != null ? data.length : 0));
+    record.put(op).putLong(mzxid).putInt(name.length).put(name).putInt(data != null ? data.length : -1);
+    if (data != null) {
+      record.put(data);
+    }
+    record.flip();
+    while (record.hasRemaining()) {
+      channel.write(record);
+    }
+    records++;
+  }
+
+  private void compactIfNeeded() throws IOException {
+    if (records > MIN_COMPACT_RECORDS && records > 2 * entries.size()) {
+      compact();
+    }
+  }
+
+  /**
+   * Rewrites the log with one record per stored node. Happens on its own once most records are outdated.
+   */
+  public synchronized void compact() throws IOException {
+    final Map<String, Entry> live = new LinkedHashMap<>(entries);
+    final Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+    try (FileChannel out = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+        StandardOpenOption.TRUNCATE_EXISTING)) {
+      final FileChannel log = channel;
+      channel = out;
+      try {
+        final ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+        header.putInt(MAGIC).putInt(VERSION).flip();
+        out.write(header);
+        for (Map.Entry<String, Entry> entry : live.entrySet()) {
+          append(PUT, entry.getKey(), entry.getValue().mzxid, read(entry.getValue()));
+        }
+      } finally {
+        channel = log;
+      }
+    }
+    channel.close();
+    Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    load();
+  }
+
+  public synchronized int size() {
+    return entries.size();
+  }
+
+  @Override
+  public synchronized void close() throws IOException {
+    channel.close();
+  }
+}
@@ -0,0 +1,181 @@
+package poc.curator;
+
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.api.CuratorEvent;
+import org.apache.curator.framework.recipes.cache.ChildData;
+import org.apache.curator.utils.ZKPaths;
+import org.apache.zookeeper.KeeperException;
+
+import java.io.Closeable;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Reads every node of a subtree breadth-first, one node at a time, without loading the tree into memory.
+ *
+ * A getData is issued per node and a getChildren only for nodes that have children, all as background operations
+ * with requests outstanding and entries read but not yet consumed together at most maxInFlight, so a slow consumer
+ * holds the walk back instead of filling the heap: memory is bounded by maxInFlight entries plus the paths still to
+ * visit. The entries come in breadth-first order since a session
+ * answers in the order it was asked.
+ *
+ * Nodes removed during the walk are skipped. Close it, or the stream, to stop early.
+ */
+public final class SubtreeWalker implements Iterator<ChildData>, Closeable {
+
+  private final CuratorFramework client;
+  private final String prefix;
+  private final int maxInFlight;
+  // guarded by this
+  private final Deque<String> frontier = new ArrayDeque<>();
+  // nodes read whose children are still to be listed, ahead of the frontier.
+  private final Deque<String> parents = new ArrayDeque<>();
+  private final Deque<ChildData> entries = new ArrayDeque<>();
+  private int inFlight;
+  private Exception failure;
+  private boolean closed;
+
+  /**
+   * @param root        first node to read.
+   * @param prefix      only nodes whose path starts with it are returned, and only subtrees that can contain such
+   *                    nodes are walked. Null for all nodes.
+   * @param maxInFlight most requests outstanding and entries held for the consumer, together.
+   */
+  public SubtreeWalker(CuratorFramework client, String root, String prefix, int maxInFlight) {
+    if (maxInFlight < 1) {
+      throw new IllegalArgumentException("maxInFlight must be at least 1: " + maxInFlight);
+    }
+    this.client = client;
+    this.prefix = prefix != null ? prefix : "";
+    this.maxInFlight = maxInFlight;
+    if (canMatch(root)) {
+      frontier.add(root);
+    }
+  }
+
+  /**
+   * @return the remaining entries, closing the stream stops the walk.
+   */
+  public Stream<ChildData> stream() {
+    return StreamSupport.stream(Spliterators.spliteratorUnknownSize(this, Spliterator.ORDERED | Spliterator.NONNULL),
+        false).onClose(this::close);
+  }
+
+  @Override
+  public synchronized boolean hasNext() {
+    while (true) {
+      if (failure != null) {
+        throw new RuntimeException("Error walking the tree", failure);
+      }
+      if (!entries.isEmpty()) {
+        return true;
+      }
+      pump();
+      if (closed || inFlight == 0 && frontier.isEmpty() && parents.isEmpty()) {
+        return false;
+      }
+      try {
+        wait();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        close();
+        // not the end of the tree, the consumer must not take it for that.
+        throw new RuntimeException("Interrupted walking the tree", e);
+      }
+    }
+  }
+
+  @Override
+  public synchronized ChildData next() {
+    if (!hasNext()) {
+      throw new NoSuchElementException();
+    }
+    final ChildData entry = entries.poll();
+    pump();
+    return entry;
+  }
+
+  // issues requests while there is room for their answers. Called with the lock held.
+  private void pump() {
+    while (!closed && failure == null && (!parents.isEmpty() || !frontier.isEmpty())
+        && inFlight + entries.size() < maxInFlight) {
+      // listing first keeps the frontier filled in breadth-first order.
+      final String parent = parents.poll();
+      final String path = parent != null ? parent : frontier.poll();
+      inFlight++;
+      try {
+        if (parent == null && path.startsWith(prefix)) {
+          client.getData().inBackground((c, event) -> dataRead(event)).forPath(path);
+        } else {
+          // a node read already, or only an ancestor of the prefix whose data is not wanted.
+          client.getChildren().inBackground((c, event) -> childrenRead(event)).forPath(path);
+        }
+      } catch (Exception e) {
+        inFlight--;
+        failure = e;
+      }
+    }
+  }
+
+  private synchronized void dataRead(CuratorEvent event) {
+    inFlight--;
+    if (!closed && succeeded(event)) {
+      entries.add(new ChildData(event.getPath(), event.getStat(), event.getData()));
+      if (event.getStat().getNumChildren() > 0) {
+        // listed once the entry leaves room, the slot the getData freed now holds the entry.
+        parents.add(event.getPath());
+      }
+    }
+    pump();
+    notifyAll();
+  }
+
+  private synchronized void childrenRead(CuratorEvent event) {
+    inFlight--;
+    if (!closed && succeeded(event)) {
+      for (String child : event.getChildren()) {
+        final String childPath = ZKPaths.makePath(event.getPath(), child);
+        if (canMatch(childPath)) {
+          frontier.add(childPath);
+        }
+      }
+    }
+    pump();
+    notifyAll();
+  }
+
+  // false for a node removed in the meantime, which is skipped. Called with the lock held.
+  private boolean succeeded(CuratorEvent event) {
+    final KeeperException.Code code = KeeperException.Code.get(event.getResultCode());
+    if (code == KeeperException.Code.OK) {
+      return true;
+    }
+    if (code != KeeperException.Code.NONODE && failure == null) {
+      failure = KeeperException.create(code, event.getPath());
+    }
+    return false;
+  }
+
+  // the node or one of its descendants can start with the prefix.
+  private boolean canMatch(String path) {
+    return path.startsWith(prefix) || prefix.startsWith(path.endsWith("/") ? path : path + "/");
+  }
+
+  /**
+   * Stops the walk. Requests still outstanding are answered but their results are dropped.
+   */
+  @Override
+  public synchronized void close() {
+    closed = true;
+    frontier.clear();
+    parents.clear();
+    entries.clear();
+    notifyAll();
+  }
+}
@@ -0,0 +1,50 @@
+package poc.curator;
+
+import java.io.Closeable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * One subscription to a shared watch. Closing it removes only this subscriber's listener; the underlying cache
+ * is closed once its last subscriber is gone.
+ */
+public final class WatchHandle implements Closeable {
+
+  private final String path;
+  private final Runnable unsubscribe;
+  private final CompletableFuture<Void> initialized;
+  private final AtomicBoolean closed = new AtomicBoolean();
+
+  WatchHandle(String path, Runnable unsubscribe) {
+    this(path, unsubscribe, CompletableFuture.completedFuture(null));
+  }
+
+  WatchHandle(String path, Runnable unsubscribe, CompletableFuture<Void> initialized) {
+    this.path = path;
+    this.unsubscribe = unsubscribe;
+    this.initialized = initialized;
+  }
+
+  public String getPath() {
+    return path;
+  }
+
+  /**
+   * Completes once the cache behind this watch has loaded its initial data and, for a bulk load subscriber, the
+   * snapshot has been handed over. Done right away for watches without an initial load.
+   */
+  public CompletableFuture<Void> initialized() {
+    return initialized;
+  }
+
+  public boolean isClosed() {
+    return closed.get();
+  }
+
+  @Override
+  public void close() {
+    if (closed.compareAndSet(false, true)) {
+      unsubscribe.run();
+    }
+  }
+}
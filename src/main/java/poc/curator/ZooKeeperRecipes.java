@@ -1,23 +1,31 @@
 package poc.curator;
 
 import org.apache.curator.framework.CuratorFramework;
-import org.apache.curator.framework.CuratorFrameworkFactory;
-import org.apache.curator.retry.ExponentialBackoffRetry;
+import org.apache.curator.framework.api.CuratorEvent;
 import org.apache.curator.utils.ZKPaths;
 import org.apache.curator.x.discovery.*;
+import org.apache.curator.x.discovery.details.InstanceSerializer;
 import org.apache.curator.x.discovery.details.JsonInstanceSerializer;
 import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.data.Stat;
 import poc.curator.services.MyService;
 
+import javax.management.JMException;
 import java.io.Closeable;
 import java.io.IOException;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.HashMap;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 
 /**
  * This class acts as a facade over the Curator APIs for Zookeeper Recipes.
@@ -25,44 +33,163 @@ import java.util.Map;
  */
 public final class ZooKeeperRecipes {
 
+  // most config paths remembered for upsertData.
+  private static final int MAX_KNOWN_PATHS = 4096;
+  // most last known answers kept by degraded mode unless given.
+  private static final int DEFAULT_LAST_KNOWN = 1024;
+
+  private final CuratorClientPool clientPool;
+  // the primary session of the pool, all writes go through it.
   private final CuratorFramework curatorClient;
+  private final InstanceSerializer<MyService> serializer;
   private final ServiceDiscovery<MyService> serviceDiscovery;
-  private final Map<String, ServiceInstance<MyService>> serviceInstances;
-  private final PathWatcherRecipe pathWatcherRecipe;
-  private final CacheRecipe cacheRecipe;
+  // false for a discovery shared with other code, which then starts and closes it.
+  private final boolean ownsDiscovery;
+  // one per read session of the pool, used to query.
+  private final List<ServiceDiscovery<MyService>> readDiscoveries = new ArrayList<>();
+  private final ParallelDiscovery<MyService> parallelDiscovery;
+  // by serviceName + servicePort, so unregisterService can find them.
+  private final Map<String, ServiceInstance<MyService>> serviceInstances = new ConcurrentHashMap<>();
+  // registers the instances and brings them back after a connection loss, serviceDiscovery is only used to query.
+  private final RegistrationManager<MyService> registrationManager;
+  // one per read session of the pool, watches go to the one for their path.
+  private final List<PathWatcherRecipe> pathWatcherRecipes = new ArrayList<>();
+  private final List<CacheRecipe> cacheRecipes = new ArrayList<>();
+  // null when discovery goes straight to ZooKeeper.
+  private final ServiceCacheRecipe<MyService> serviceCacheRecipe;
+  private final ServiceProviderRecipe serviceProviderRecipe;
+  // null until enableDataCache is called.
+  private volatile DataCacheRecipe dataCache;
+  // null until enableMetrics is called, nothing is measured until then.
+  private volatile RecipeMetrics metrics;
+  // values at least this long are written compressed, -1 while compression is off.
+  private volatile int compressAbove = -1;
+  // null until enableDegradedMode is called, reads and writes fail while there is no quorum until then.
+  private volatile DegradedMode degradedMode;
+
+  // config paths this object wrote (true) or removed (false), so upsertData tries first the write that usually
+  // succeeds. Access ordered, the least recently used are forgotten first. Guarded by itself.
+  private final Map<String, Boolean> knownPaths = new LinkedHashMap<>(16, 0.75f, true);
 
   // tracks all closeables so we can do a clean termination for all of them.
   private final List<Closeable> closeAbles = new ArrayList<>();
+  // set by start, which runs on first use if it was not called.
+  private volatile boolean started;
 
   public ZooKeeperRecipes(String zookeeperAddress) throws Exception {
-    serviceInstances = new HashMap<>();
-    System.out.println("Connecting to ZooKeeper: " + zookeeperAddress);
+    this(zookeeperAddress, false);
+  }
 
-    // Specify retry mechanism in case of recoverable errors from ZooKeeper.
-    curatorClient = CuratorFrameworkFactory.newClient(zookeeperAddress,
-        new ExponentialBackoffRetry(1000, 3));
+  /**
+   * @param cacheDiscovery when true, {@link #discover(String)} is answered from a watch driven local cache
+   *                       instead of querying ZooKeeper on every call.
+   */
+  public ZooKeeperRecipes(String zookeeperAddress, boolean cacheDiscovery) throws Exception {
+    this(zookeeperAddress, cacheDiscovery, new JsonInstanceSerializer<>(MyService.class));
+  }
+
+  /**
+   * @param serializer how service instances are stored in their znodes, e.g. {@link BinaryInstanceSerializer}.
+   *                   Every client reading the instances must be able to read this format.
+   */
+  public ZooKeeperRecipes(String zookeeperAddress, boolean cacheDiscovery, InstanceSerializer<MyService> serializer)
+      throws Exception {
+    this(singleSession(zookeeperAddress), cacheDiscovery, serializer);
+  }
+
+  /**
+   * Writes go through the primary session of the pool, reads, discovery and watches are spread over its read
+   * sessions, see {@link CuratorClientPool}. The pool is started and closed along with this object.
+   */
+  public ZooKeeperRecipes(CuratorClientPool clientPool, boolean cacheDiscovery, InstanceSerializer<MyService> serializer)
+      throws Exception {
+    this(clientPool, null, cacheDiscovery, serializer);
+  }
+
+  /**
+   * Uses a client created elsewhere, e.g. shared with a {@link ServiceDiscoveryRecipe}, instead of opening a session
+   * of its own. The client is started if it is not yet, but left open on {@link #close()}.
+   *
+   * @param serviceDiscovery discovery to share, started and closed by its owner and built on the same client with a
+   *                         serializer that reads the same format. Null to build one.
+   */
+  public ZooKeeperRecipes(CuratorFramework client, ServiceDiscovery<MyService> serviceDiscovery, boolean cacheDiscovery,
+                          InstanceSerializer<MyService> serializer) throws Exception {
+    this(new CuratorClientPool(client, Collections.<CuratorFramework>emptyList(), false), serviceDiscovery,
+        cacheDiscovery, serializer);
+  }
+
+  private ZooKeeperRecipes(CuratorClientPool clientPool, ServiceDiscovery<MyService> sharedDiscovery,
+                           boolean cacheDiscovery, InstanceSerializer<MyService> serializer) throws Exception {
+    this.clientPool = clientPool;
+    curatorClient = clientPool.getPrimary();
 
     // Payload Serializer
-    final JsonInstanceSerializer<MyService> serializer = new JsonInstanceSerializer<>(MyService.class);
+    this.serializer = serializer;
 
     // Service Discovery
-    serviceDiscovery = ServiceDiscoveryBuilder.builder(MyService.class)
+    ownsDiscovery = sharedDiscovery == null;
+    serviceDiscovery = ownsDiscovery ? ServiceDiscoveryBuilder.builder(MyService.class)
         .client(curatorClient)
         .basePath(Config.SERVICES_PATH)
         .serializer(serializer)
-        .build();
+        .build() : sharedDiscovery;
+    parallelDiscovery = new ParallelDiscovery<>(clientPool.getReadClient(Config.SERVICES_PATH), Config.SERVICES_PATH,
+        serializer);
+    registrationManager = new RegistrationManager<>(curatorClient, Config.SERVICES_PATH, serializer);
+
+    for (CuratorFramework readClient : clientPool.getReadClients()) {
+      readDiscoveries.add(readClient == curatorClient ? serviceDiscovery : ServiceDiscoveryBuilder.builder(MyService.class)
+          .client(readClient)
+          .basePath(Config.SERVICES_PATH)
+          .serializer(serializer)
+          .build());
 
-    // Watches for any changes to given PATH
-    pathWatcherRecipe = new PathWatcherRecipe(curatorClient);
+      // Watches for any changes to given PATH
+      pathWatcherRecipes.add(new PathWatcherRecipe(readClient));
 
-    cacheRecipe = new CacheRecipe(curatorClient);
+      cacheRecipes.add(new CacheRecipe(readClient));
+    }
+
+    serviceCacheRecipe = cacheDiscovery ? new ServiceCacheRecipe<>(serviceDiscovery) : null;
+
+    serviceProviderRecipe = new ServiceProviderRecipe(serviceDiscovery);
+  }
+
+  private static CuratorClientPool singleSession(String zookeeperAddress) {
+    System.out.println("Connecting to ZooKeeper: " + zookeeperAddress);
+    return new CuratorClientPool(zookeeperAddress, Collections.<String>emptyList());
   }
 
   public void registerService(String serviceName, int servicePort, MyService obj) throws UnknownHostException, Exception {
+    ensureStarted();
+    final long start = startTimer();
+    try {
+      awaitWritable();
+      final ServiceInstance<MyService> thisInstance = newServiceInstance(serviceName, servicePort, obj);
+
+      registrationManager.register(thisInstance);
+      clientPool.wrote();
+
+      // track it so we can unregister this one.
+      serviceInstances.put(serviceName + servicePort, thisInstance);
+    } catch (Exception e) {
+      failed(e);
+      throw e;
+    } finally {
+      stopTimer("registerService", start);
+    }
+  }
+
+  /**
+   * Builds the instance that {@link #registerService(String, int, MyService)} would register, for use with
+   * {@link #registerServices(Collection)}.
+   */
+  public ServiceInstance<MyService> newServiceInstance(String serviceName, int servicePort, MyService obj) throws Exception {
     // Scheme, address and port - This will yield an address of form: http://<ip>:port/
     final UriSpec uriSpec = new UriSpec("{scheme}://{address}:{port}");
 
-    final ServiceInstance<MyService> thisInstance = ServiceInstance.<MyService>builder().name(serviceName)
+    return ServiceInstance.<MyService>builder().name(serviceName)
         .uriSpec(uriSpec)
         // Pass the IP address the instance is available on
         .address(InetAddress.getLocalHost().getHostAddress())
@@ -71,38 +198,133 @@ public final class ZooKeeperRecipes {
         // Pass other Instance details that you want to expose for other services to discover
         .payload(obj)
         .build();
+  }
 
-    serviceDiscovery.registerService(thisInstance);
+  /**
+   * Registers all instances in a single ZooKeeper multi op: either all of them become visible or none do.
+   * The service nodes that hold the instances are created first if needed, which is one extra round-trip per new
+   * service name.
+   */
+  public BatchResult registerServices(final Collection<ServiceInstance<MyService>> instances) throws Exception {
+    ensureStarted();
+    final long start = startTimer();
+    try {
+      awaitWritable();
+      final BatchResult result = registrationManager.register(instances);
+      clientPool.wrote();
+      for (ServiceInstance<MyService> instance : instances) {
+        serviceInstances.put(instance.getName() + instance.getPort(), instance);
+      }
+      return result;
+    } catch (Exception e) {
+      failed(e);
+      throw e;
+    } finally {
+      stopTimer("registerServices", start);
+    }
+  }
 
-    // track it so we can unregister this one.
-    serviceInstances.put(serviceName + servicePort, thisInstance);
+  /**
+   * Removes all instances in a single ZooKeeper multi op. If any of them is already gone nothing is removed and
+   * a {@link KeeperException.NoNodeException} is thrown.
+   */
+  public BatchResult unregisterServices(final Collection<ServiceInstance<MyService>> instances) throws Exception {
+    ensureStarted();
+    final long start = startTimer();
+    try {
+      awaitWritable();
+      final BatchResult result = registrationManager.unregister(instances);
+      clientPool.wrote();
+      for (ServiceInstance<MyService> instance : instances) {
+        serviceInstances.remove(instance.getName() + instance.getPort());
+      }
+      return result;
+    } catch (Exception e) {
+      failed(e);
+      throw e;
+    } finally {
+      stopTimer("unregisterServices", start);
+    }
   }
 
   public void unregisterService(final String serviceName, final int servicePort) throws Exception {
-    final ServiceInstance<MyService> thisInstance = serviceInstances.get(serviceName + servicePort);
-    if (thisInstance != null) {
-      serviceDiscovery.unregisterService(thisInstance);
+    ensureStarted();
+    final long start = startTimer();
+    try {
+      awaitWritable();
+      final String key = serviceName + servicePort;
+      final ServiceInstance<MyService> thisInstance = serviceInstances.get(key);
+      if (thisInstance != null) {
+        registrationManager.unregister(thisInstance);
+        clientPool.wrote();
+        // only forgotten once it is gone, so a failed call can be retried.
+        serviceInstances.remove(key, thisInstance);
+      }
+    } catch (Exception e) {
+      failed(e);
+      throw e;
+    } finally {
+      stopTimer("unregisterService", start);
     }
   }
 
   public Collection<ServiceInstance<MyService>> discover(final String serviceName) throws Exception {
-    final Collection<ServiceInstance<MyService>> instances = serviceDiscovery.queryForInstances(serviceName);
-    for (ServiceInstance<MyService> instance : instances) {
-      //outputInstance(instance);
+    ensureStarted();
+    final long start = startTimer();
+    try {
+      final DegradedMode degraded = degradedMode;
+      if (serviceCacheRecipe != null) {
+        if (degraded != null) {
+          degraded.cachedRead(curatorClient, "discover");
+        }
+        return serviceCacheRecipe.getInstances(serviceName);
+      }
+      final String path = ZKPaths.makePath(Config.SERVICES_PATH, serviceName);
+      if (degraded != null) {
+        return degraded.read(clientPool.getReadClient(path), path, "discover",
+            () -> readDiscovery(serviceName).queryForInstances(serviceName));
+      }
+      final Collection<ServiceInstance<MyService>> instances = readDiscovery(serviceName).queryForInstances(serviceName);
+      for (ServiceInstance<MyService> instance : instances) {
+        //outputInstance(instance);
+      }
+      return instances;
+    } catch (Exception e) {
+      failed(e);
+      throw e;
+    } finally {
+      stopTimer("discover", start);
     }
-    return instances;
   }
 
   public List<ServiceInstance<MyService>>  discoverAll() throws Exception {
+    ensureStarted();
+    final long start = startTimer();
+    try {
+      final DegradedMode degraded = degradedMode;
+      if (degraded != null) {
+        return degraded.read(clientPool.getReadClient(Config.SERVICES_PATH), Config.SERVICES_PATH, "discoverAll",
+            this::queryForAllInstances);
+      }
+      return queryForAllInstances();
+    } catch (Exception e) {
+      failed(e);
+      throw e;
+    } finally {
+      stopTimer("discoverAll", start);
+    }
+  }
+
+  private List<ServiceInstance<MyService>> queryForAllInstances() throws Exception {
     Collection<String> serviceNames = null;
     try {
-      serviceNames = serviceDiscovery.queryForNames();
+      serviceNames = readDiscovery(null).queryForNames();
     } catch (KeeperException.NoNodeException ke) {
     }
     final List<ServiceInstance<MyService>> list = new ArrayList<>();
     if (serviceNames != null) {
       for (String serviceName : serviceNames) {
-        final Collection<ServiceInstance<MyService>> instances = serviceDiscovery.queryForInstances(serviceName);
+        final Collection<ServiceInstance<MyService>> instances = readDiscovery(serviceName).queryForInstances(serviceName);
         for (ServiceInstance<MyService> instance : instances) {
           //outputInstance(instance);
         }
@@ -112,71 +334,725 @@ public final class ZooKeeperRecipes {
     return list;
   }
 
+  /**
+   * @return the discovery on the read session for the given service, or for the service names if null. The session
+   * is synced first if this object wrote since.
+   */
+  private ServiceDiscovery<MyService> readDiscovery(String serviceName) throws Exception {
+    final String path = serviceName == null ? Config.SERVICES_PATH : ZKPaths.makePath(Config.SERVICES_PATH, serviceName);
+    clientPool.reader(path);
+    return readDiscoveries.get(clientPool.readIndex(path));
+  }
+
+  /**
+   * Same result as {@link #discoverAll()}, but the lookups for all services are issued together as background
+   * operations so the latency does not grow with the number of services.
+   */
+  public List<ServiceInstance<MyService>> discoverAllParallel() throws Exception {
+    ensureStarted();
+    final long start = startTimer();
+    try {
+      final DegradedMode degraded = degradedMode;
+      if (degraded != null) {
+        return degraded.read(clientPool.getReadClient(Config.SERVICES_PATH), Config.SERVICES_PATH,
+            "discoverAllParallel", () -> {
+              clientPool.reader(Config.SERVICES_PATH);
+              return parallelDiscovery.queryForAllInstances();
+            });
+      }
+      clientPool.reader(Config.SERVICES_PATH);
+      return parallelDiscovery.queryForAllInstances();
+    } catch (Exception e) {
+      failed(e);
+      throw e;
+    } finally {
+      stopTimer("discoverAllParallel", start);
+    }
+  }
+
+  /**
+   * Returns the round-robin provider for the given service. Pick an instance with {@link ServiceProvider#getInstance()}
+   * on every request rather than holding on to one.
+   */
+  public ServiceProvider<MyService> provider(final String serviceName) throws Exception {
+    return provider(serviceName, ProviderStrategies.Type.ROUND_ROBIN);
+  }
+
+  /**
+   * Returns the provider for the given service that balances with the given strategy. Providers are created on first
+   * use and shared afterwards; they are closed along with this object.
+   */
+  public ServiceProvider<MyService> provider(final String serviceName, final ProviderStrategies.Type strategy)
+      throws Exception {
+    ensureStarted();
+    return serviceProviderRecipe.getProvider(serviceName, strategy);
+  }
+
+  private CacheRecipe cacheRecipe(String newPath) {
+    return cacheRecipes.get(clientPool.readIndex(newPath));
+  }
+
   public void addDataWatch(String path, CacheRecipe.CacheListener listener) {
+    ensureStarted();
     try {
       final String newPath = ZKPaths.makePath(Config.CONFIG_PATH, path);
-      cacheRecipe.addNodeCacheWatch(newPath, listener);
+      cacheRecipe(newPath).addNodeCacheWatch(newPath, listener);
     } catch (Exception e) {
       e.printStackTrace();
     }
   }
 
-  public void setData(String path, String data) {
-    byte[] bytes = data.getBytes();
+  /**
+   * Same as {@link #addDataWatch(String, CacheRecipe.CacheListener)}, but a burst of writes to the node is reported
+   * once with the latest value, on a separate thread.
+   *
+   * @param debounce   quiet time after a write before it is delivered.
+   * @param maxLatency longest time a write may wait while writes keep coming.
+   */
+  public void addDataWatch(String path, CacheRecipe.CacheListener listener, long debounce, long maxLatency,
+                           TimeUnit unit) {
+    ensureStarted();
+    try {
+      final String newPath = ZKPaths.makePath(Config.CONFIG_PATH, path);
+      cacheRecipe(newPath).addNodeCacheWatch(newPath, listener, debounce, maxLatency, unit);
+    } catch (Exception e) {
+      e.printStackTrace();
+    }
+  }
+
+  /**
+   * Same as {@link #addDataWatch(String, CacheRecipe.CacheListener)}, but hands over the raw bytes and stat of every
+   * new version of the node without decoding them.
+   */
+  public void addDataWatch(String path, CacheRecipe.ByteCacheListener listener) {
+    ensureStarted();
     try {
       final String newPath = ZKPaths.makePath(Config.CONFIG_PATH, path);
+      cacheRecipe(newPath).addNodeCacheWatch(newPath, listener);
+    } catch (Exception e) {
+      e.printStackTrace();
+    }
+  }
+
+  public void setData(String path, String data) {
+    ensureStarted();
+    final long start = startTimer();
+    byte[] bytes = encode(data);
+    final String newPath = ZKPaths.makePath(Config.CONFIG_PATH, path);
+    try {
+      awaitWritable();
       curatorClient.setData().forPath(newPath, bytes);
+      created(newPath);
     } catch (KeeperException.NoNodeException e) {
       try {
-        final String newPath = ZKPaths.makePath(Config.CONFIG_PATH, path);
         curatorClient.create().creatingParentsIfNeeded().forPath(newPath, bytes);
+        created(newPath);
       } catch (Exception e1) {
+        failed(e1);
         e1.printStackTrace();
       }
     } catch (Exception e) {
+      failed(e);
       e.printStackTrace();
+    } finally {
+      written(newPath);
+      stopTimer("setData", start);
     }
   }
 
   public String getData(String path) {
+    return getData(path, null);
+  }
+
+  /**
+   * Same as {@link #getData(String)}, but also fills in the given stat so its version can be used with
+   * {@link #compareAndSetData(String, String, int)}.
+   */
+  public String getData(String path, Stat stat) {
+    ensureStarted();
+    final long start = startTimer();
     String data = null;
     try {
       final String newPath = ZKPaths.makePath(Config.CONFIG_PATH, path);
-      byte[] bytes = curatorClient.getData().forPath(newPath);
+      final DataCacheRecipe cache = dataCache;
+      final DegradedMode degraded = degradedMode;
+      byte[] bytes;
+      if (stat != null) {
+        bytes = clientPool.reader(newPath).getData().storingStatIn(stat).forPath(newPath);
+      } else if (degraded != null) {
+        // the stat of a last known value would be made up, so only plain reads fall back to it.
+        bytes = degraded.read(clientPool.getReadClient(newPath), newPath, "getData",
+            () -> cache != null ? cache.get(newPath) : clientPool.reader(newPath).getData().forPath(newPath));
+      } else if (cache != null) {
+        bytes = cache.get(newPath);
+      } else {
+        bytes = clientPool.reader(newPath).getData().forPath(newPath);
+      }
       if (bytes != null) {
-        data = new String(bytes);
+        data = PayloadCodec.decode(bytes);
       }
     } catch (KeeperException.NoNodeException e) {
       // do nothing if node does not exist.
     }
     catch (Exception e) {
+      failed(e);
       e.printStackTrace();
+    } finally {
+      stopTimer("getData", start);
     }
     return data;
   }
 
   public void remove(String path) throws Exception {
+    ensureStarted();
+    final long start = startTimer();
     try {
+      awaitWritable();
       final String newPath = ZKPaths.makePath(Config.CONFIG_PATH, path);
       curatorClient.delete().forPath(newPath);
+      removed(newPath);
+      written(newPath);
     } catch (KeeperException.NoNodeException e) {
-      // ignore
+      removed(ZKPaths.makePath(Config.CONFIG_PATH, path));
+    } catch (Exception e) {
+      failed(e);
+      throw e;
+    } finally {
+      stopTimer("remove", start);
+    }
+  }
+
+  /**
+   * Creates or overwrites the node, in one round-trip when this object has seen the node or its parent: a node written
+   * before is overwritten, a node removed before or whose parent exists is created. A node under an unknown parent
+   * is overwritten first and takes a second round-trip to create. A wrong guess, e.g. another writer created or
+   * removed the node, is retried the other way.
+   */
+  public void upsertData(String path, String data) throws Exception {
+    ensureStarted();
+    final long start = startTimer();
+    try {
+      awaitWritable();
+      final byte[] bytes = encode(data);
+      final String newPath = ZKPaths.makePath(Config.CONFIG_PATH, path);
+      final Boolean known = knownPath(newPath);
+      final String parent = ZKPaths.getPathAndNode(newPath).getPath();
+      boolean create = known != null ? !known : Boolean.TRUE.equals(knownPath(parent));
+      for (int attempt = 0; ; attempt++) {
+        try {
+          if (create) {
+            curatorClient.create().creatingParentsIfNeeded().forPath(newPath, bytes);
+          } else {
+            curatorClient.setData().forPath(newPath, bytes);
+          }
+          break;
+        } catch (KeeperException.NoNodeException | KeeperException.NodeExistsException e) {
+          if (attempt > 0) {
+            throw e;
+          }
+          create = !create;
+        }
+      }
+      created(newPath);
+      written(newPath);
+    } catch (Exception e) {
+      failed(e);
+      throw e;
+    } finally {
+      stopTimer("upsertData", start);
+    }
+  }
+
+  /**
+   * Writes the node only if its current version is the expected one, as read through {@link #getData(String, Stat)}.
+   * As in ZooKeeper, -1 matches any version. Use {@link #createIfAbsent(String, String)} to write a node that must
+   * not exist yet.
+   *
+   * @return false if the node was changed or removed by someone else in the meantime.
+   */
+  public boolean compareAndSetData(String path, String data, int expectedVersion) throws Exception {
+    ensureStarted();
+    final long start = startTimer();
+    try {
+      awaitWritable();
+      final byte[] bytes = encode(data);
+      final String newPath = ZKPaths.makePath(Config.CONFIG_PATH, path);
+      try {
+        curatorClient.setData().withVersion(expectedVersion).forPath(newPath, bytes);
+      } catch (KeeperException.BadVersionException | KeeperException.NoNodeException e) {
+        return false;
+      }
+      written(newPath);
+      return true;
+    } catch (Exception e) {
+      failed(e);
+      throw e;
+    } finally {
+      stopTimer("compareAndSetData", start);
+    }
+  }
+
+  /**
+   * Creates the node, and its parents, only if it does not exist yet.
+   *
+   * @return false if the node already exists.
+   */
+  public boolean createIfAbsent(String path, String data) throws Exception {
+    ensureStarted();
+    final long start = startTimer();
+    try {
+      awaitWritable();
+      final byte[] bytes = encode(data);
+      final String newPath = ZKPaths.makePath(Config.CONFIG_PATH, path);
+      try {
+        curatorClient.create().creatingParentsIfNeeded().forPath(newPath, bytes);
+      } catch (KeeperException.NodeExistsException e) {
+        return false;
+      }
+      created(newPath);
+      written(newPath);
+      return true;
+    } catch (Exception e) {
+      failed(e);
+      throw e;
+    } finally {
+      stopTimer("createIfAbsent", start);
+    }
+  }
+
+  // true if the node exists, false if it was removed, null if unknown.
+  private Boolean knownPath(String newPath) {
+    synchronized (knownPaths) {
+      return knownPaths.get(newPath);
     }
   }
 
+  private void removed(String newPath) {
+    synchronized (knownPaths) {
+      remember(newPath, Boolean.FALSE);
+    }
+  }
+
+  // The node and all its ancestors under the config root exist now.
+  private void created(String newPath) {
+    synchronized (knownPaths) {
+      for (String path = newPath; path.startsWith(Config.CONFIG_PATH); path = ZKPaths.getPathAndNode(path).getPath()) {
+        if (Boolean.TRUE.equals(remember(path, Boolean.TRUE)) && !path.equals(newPath)) {
+          // the ancestors above were remembered with it.
+          break;
+        }
+      }
+    }
+  }
+
+  // Caller holds knownPaths.
+  private Boolean remember(String newPath, Boolean exists) {
+    final Boolean previous = knownPaths.put(newPath, exists);
+    if (knownPaths.size() > MAX_KNOWN_PATHS) {
+      final Iterator<String> eldest = knownPaths.keySet().iterator();
+      eldest.next();
+      eldest.remove();
+    }
+    return previous;
+  }
+
+  /**
+   * Non-blocking {@link #setData(String, String)}. Creates the node (and its parents) when it does not exist yet.
+   */
+  public CompletableFuture<Void> setDataAsync(String path, String data) {
+    ensureStarted();
+    final long start = startTimer();
+    final byte[] bytes = encode(data);
+    final String newPath = ZKPaths.makePath(Config.CONFIG_PATH, path);
+    final CompletableFuture<Void> future = new CompletableFuture<>();
+    whenWritable().whenComplete((v, e) -> {
+      if (e != null) {
+        future.completeExceptionally(e);
+      } else {
+        setDataInBackground(newPath, bytes, future, true);
+      }
+    });
+    return future.whenComplete((v, e) -> {
+      if (e == null) {
+        created(newPath);
+      }
+      written(newPath);
+      stopTimer("setDataAsync", start, e);
+    });
+  }
+
+  private void setDataInBackground(String newPath, byte[] bytes, CompletableFuture<Void> future, boolean createIfMissing) {
+    try {
+      curatorClient.setData().inBackground((client, event) -> {
+        if (createIfMissing && event.getResultCode() == KeeperException.Code.NONODE.intValue()) {
+          createInBackground(newPath, bytes, future);
+        } else {
+          complete(future, event, null);
+        }
+      }).forPath(newPath, bytes);
+    } catch (Exception e) {
+      future.completeExceptionally(e);
+    }
+  }
+
+  private void createInBackground(String newPath, byte[] bytes, CompletableFuture<Void> future) {
+    try {
+      curatorClient.create().creatingParentsIfNeeded().inBackground((client, event) -> {
+        if (event.getResultCode() == KeeperException.Code.NODEEXISTS.intValue()) {
+          // another writer created it in the meantime, overwrite once more.
+          setDataInBackground(newPath, bytes, future, false);
+        } else {
+          complete(future, event, null);
+        }
+      }).forPath(newPath, bytes);
+    } catch (Exception e) {
+      future.completeExceptionally(e);
+    }
+  }
+
+  /**
+   * Non-blocking {@link #getData(String)}. Completes with null if the node does not exist.
+   */
+  public CompletableFuture<String> getDataAsync(String path) {
+    ensureStarted();
+    final long start = startTimer();
+    final String newPath = ZKPaths.makePath(Config.CONFIG_PATH, path);
+    final DegradedMode degraded = degradedMode;
+    if (degraded != null) {
+      final CuratorFramework readClient = clientPool.getReadClient(newPath);
+      final byte[] stale = degraded.lastKnown(readClient, newPath, "getDataAsync");
+      if (stale != null) {
+        stopTimer("getDataAsync", start);
+        return CompletableFuture.completedFuture(PayloadCodec.decode(stale));
+      }
+    }
+    return clientPool.readerAsync(newPath).thenCompose(reader -> {
+      final CompletableFuture<String> future = new CompletableFuture<>();
+      try {
+        reader.getData().inBackground((client, event) -> {
+          if (degraded != null) {
+            final byte[] last = degraded.lastKnownAfter(event.getResultCode(), newPath, "getDataAsync");
+            if (last != null) {
+              future.complete(PayloadCodec.decode(last));
+              return;
+            }
+          }
+          if (degraded != null && (event.getResultCode() == KeeperException.Code.OK.intValue()
+              || event.getResultCode() == KeeperException.Code.NONODE.intValue())) {
+            degraded.remember(reader, newPath, "getDataAsync", event.getData());
+          }
+          if (event.getResultCode() == KeeperException.Code.NONODE.intValue()) {
+            future.complete(null);
+          } else {
+            complete(future, event, PayloadCodec.decode(event.getData()));
+          }
+        }).forPath(newPath);
+      } catch (Exception e) {
+        future.completeExceptionally(e);
+      }
+      return future;
+    }).whenComplete((v, e) -> stopTimer("getDataAsync", start, e));
+  }
+
+  /**
+   * Streams the given config node and all nodes below it breadth-first, see {@link SubtreeWalker}, instead of one
+   * blocking {@link #getData(String)} per node or a TreeCache holding the whole tree. Close the walker or its stream
+   * when done.
+   *
+   * @param prefix      only nodes below {@link Config#CONFIG_PATH} whose path starts with it are returned, e.g.
+   *                    "app/db" for app/db, app/db1 and everything below them. Null for all nodes.
+   * @param maxInFlight most requests outstanding at once.
+   */
+  public SubtreeWalker walkData(String path, String prefix, int maxInFlight) throws Exception {
+    ensureStarted();
+    final String root = ZKPaths.makePath(Config.CONFIG_PATH, path);
+    return new SubtreeWalker(clientPool.reader(root), root,
+        prefix != null ? ZKPaths.makePath(Config.CONFIG_PATH, prefix) : null, maxInFlight);
+  }
+
+  /**
+   * Non-blocking {@link #remove(String)}. A node that does not exist counts as removed.
+   */
+  public CompletableFuture<Void> removeAsync(String path) {
+    ensureStarted();
+    final long start = startTimer();
+    final CompletableFuture<Void> future = new CompletableFuture<>();
+    final String newPath = ZKPaths.makePath(Config.CONFIG_PATH, path);
+    whenWritable().whenComplete((v, e) -> {
+      if (e != null) {
+        future.completeExceptionally(e);
+      } else {
+        removeInBackground(newPath, future);
+      }
+    });
+    return future.whenComplete((v, e) -> {
+      if (e == null) {
+        removed(newPath);
+      }
+      written(newPath);
+      stopTimer("removeAsync", start, e);
+    });
+  }
+
+  private void removeInBackground(String newPath, CompletableFuture<Void> future) {
+    try {
+      curatorClient.delete().inBackground((client, event) -> {
+        if (event.getResultCode() == KeeperException.Code.NONODE.intValue()) {
+          future.complete(null);
+        } else {
+          complete(future, event, null);
+        }
+      }).forPath(newPath);
+    } catch (Exception e) {
+      future.completeExceptionally(e);
+    }
+  }
+
+  private static <T> void complete(CompletableFuture<T> future, CuratorEvent event, T value) {
+    final KeeperException.Code code = KeeperException.Code.get(event.getResultCode());
+    if (code == KeeperException.Code.OK) {
+      future.complete(value);
+    } else {
+      future.completeExceptionally(KeeperException.create(code, event.getPath()));
+    }
+  }
+
+  /**
+   * Writes config values of at least minBytes compressed, see {@link PayloadCodec}. Compressed values are recognised
+   * on read whether or not this is on, by this object, its watches and caches, so only turn it on once every
+   * client reading the values can decompress them.
+   */
+  public void enableCompression(int minBytes) {
+    compressAbove = Math.max(minBytes, 0);
+  }
+
+  public void disableCompression() {
+    compressAbove = -1;
+  }
+
+  private byte[] encode(String data) {
+    final byte[] bytes = data.getBytes(StandardCharsets.UTF_8);
+    final int minBytes = compressAbove;
+    return minBytes >= 0 ? PayloadCodec.compress(bytes, minBytes) : bytes;
+  }
+
+  /**
+   * Puts a read-through cache in front of {@link #getData(String)}, see {@link DataCacheRecipe}. Misses are read
+   * from the read session of the path like uncached reads. Writes made through this object drop the cached entry
+   * right away, writes from elsewhere through the watch set on the read.
+   *
+   * @param maxBytes upper bound for the cached data plus paths.
+   * @param ttl      how long an entry may be served without being re-read, 0 to rely on watches only.
+   */
+  public DataCacheRecipe enableDataCache(long maxBytes, long ttl, TimeUnit unit) {
+    final DataCacheRecipe cache = new DataCacheRecipe(clientPool::reader, maxBytes, ttl, unit);
+    dataCache = cache;
+    final RecipeMetrics m = metrics;
+    if (m != null) {
+      m.cacheHitRatio("data", cache::getHitRatio);
+    }
+    return cache;
+  }
+
+  /**
+   * @return the data cache, or null if {@link #enableDataCache(long, long, TimeUnit)} was not called.
+   */
+  public DataCacheRecipe getDataCache() {
+    return dataCache;
+  }
+
+  // after every write: drops the cached value and makes the read sessions sync before their next read.
+  private void written(String newPath) {
+    clientPool.wrote();
+    final DataCacheRecipe cache = dataCache;
+    if (cache != null) {
+      cache.invalidate(newPath);
+    }
+  }
+
+  /**
+   * Keeps discovery and config reads answering while the ensemble has no quorum and holds writes back until it has
+   * again, see {@link DegradedMode}. Sessions only use read-only servers when they were built with canBeReadOnly,
+   * e.g. through {@link CuratorClientPool#CuratorClientPool(String, Collection, boolean)}; otherwise a disconnected
+   * session answers with the last value it read.
+   *
+   * @param writeTimeout how long a write waits for quorum before it fails.
+   */
+  public DegradedMode enableDegradedMode(long writeTimeout, TimeUnit unit) {
+    return enableDegradedMode(writeTimeout, unit, DEFAULT_LAST_KNOWN);
+  }
+
+  /**
+   * @param maxLastKnown for how many paths and services the last answer is kept to serve while disconnected.
+   */
+  public synchronized DegradedMode enableDegradedMode(long writeTimeout, TimeUnit unit, int maxLastKnown) {
+    if (degradedMode == null) {
+      final DegradedMode degraded = new DegradedMode(curatorClient, clientPool.getReadClients(), writeTimeout, unit,
+          maxLastKnown);
+      degraded.setMetrics(metrics);
+      degraded.start();
+      degradedMode = degraded;
+    }
+    return degradedMode;
+  }
+
+  /**
+   * @return the degraded mode, or null if {@link #enableDegradedMode(long, TimeUnit)} was not called.
+   */
+  public DegradedMode getDegradedMode() {
+    return degradedMode;
+  }
+
+  // blocks while the primary session has no quorum, if degraded mode is on.
+  private void awaitWritable() throws Exception {
+    final DegradedMode degraded = degradedMode;
+    if (degraded != null) {
+      degraded.awaitWritable();
+    }
+  }
+
+  private CompletableFuture<Void> whenWritable() {
+    final DegradedMode degraded = degradedMode;
+    return degraded != null ? degraded.whenWritable() : CompletableFuture.completedFuture(null);
+  }
+
+  /**
+   * Starts measuring the operations of this object and its watches and caches, see {@link RecipeMetrics}. The
+   * metrics are registered as MBean under the given name, unless it is null, and closed along with this object.
+   */
+  public synchronized RecipeMetrics enableMetrics(String name) throws JMException {
+    if (metrics == null) {
+      final RecipeMetrics m = new RecipeMetrics();
+      if (name != null) {
+        m.registerMBean(name);
+      }
+      curatorClient.getConnectionStateListenable().addListener((client, newState) -> m.connectionStateChanged(newState));
+      for (PathWatcherRecipe pathWatcherRecipe : pathWatcherRecipes) {
+        pathWatcherRecipe.setMetrics(m);
+      }
+      registrationManager.setMetrics(m);
+      for (CacheRecipe cacheRecipe : cacheRecipes) {
+        cacheRecipe.setMetrics(m);
+      }
+      final DataCacheRecipe cache = dataCache;
+      if (cache != null) {
+        m.cacheHitRatio("data", cache::getHitRatio);
+      }
+      final DegradedMode degraded = degradedMode;
+      if (degraded != null) {
+        degraded.setMetrics(m);
+      }
+      metrics = m;
+    }
+    return metrics;
+  }
+
+  /**
+   * @return the metrics, or null if {@link #enableMetrics(String)} was not called.
+   */
+  public RecipeMetrics getMetrics() {
+    return metrics;
+  }
+
+  // Start of a timed operation, 0 while metrics are off.
+  private long startTimer() {
+    return metrics != null ? System.nanoTime() : 0;
+  }
+
+  private void stopTimer(String operation, long start) {
+    final RecipeMetrics m = metrics;
+    if (m != null && start != 0) {
+      m.record(operation, System.nanoTime() - start);
+    }
+  }
+
+  private void stopTimer(String operation, long start, Throwable error) {
+    if (error instanceof Exception) {
+      failed((Exception) error);
+    }
+    stopTimer(operation, start);
+  }
+
+  private void failed(Exception e) {
+    final RecipeMetrics m = metrics;
+    if (m != null) {
+      m.error(e);
+    }
+  }
+
+  /**
+   * @return the path watcher on the read session for {@link Config#CONFIG_PATH}.
+   */
   public PathWatcherRecipe getPathWatcher() {
-    return pathWatcherRecipe;
+    return getPathWatcher(Config.CONFIG_PATH);
+  }
+
+  /**
+   * @return the path watcher on the read session that serves the given path, use it for watches on that path.
+   */
+  public PathWatcherRecipe getPathWatcher(String path) {
+    ensureStarted();
+    return pathWatcherRecipes.get(clientPool.readIndex(path));
+  }
+
+  public RegistrationManager<MyService> getRegistrationManager() {
+    ensureStarted();
+    return registrationManager;
   }
 
-  public void start() {
+  /**
+   * @return the primary client, started, e.g. to share it with a {@link ServiceDiscoveryRecipe}.
+   */
+  public CuratorFramework getCuratorClient() {
+    ensureStarted();
+    return curatorClient;
+  }
+
+  /**
+   * @return the discovery, started, e.g. to share it with another instance of this class.
+   */
+  public ServiceDiscovery<MyService> getServiceDiscovery() {
+    ensureStarted();
+    return serviceDiscovery;
+  }
+
+  private void ensureStarted() {
+    if (!started) {
+      start();
+    }
+  }
+
+  /**
+   * Connects to ZooKeeper. Optional: the first operation that needs the connection calls it, so a short-lived
+   * program that does not touch ZooKeeper never pays for the connection. Only the first call has an effect.
+   */
+  public synchronized void start() {
+    if (started) {
+      return;
+    }
     try {
-      curatorClient.start();
-      closeAbles.add(curatorClient);
-      serviceDiscovery.start();
-      // add to top so we can close it first.
-      closeAbles.add(0, serviceDiscovery);
-      closeAbles.add(0, cacheRecipe);
-      closeAbles.add(0, pathWatcherRecipe);
+      clientPool.start();
+      closeAbles.add(clientPool);
+      if (ownsDiscovery) {
+        serviceDiscovery.start();
+        // add to top so we can close it first.
+        closeAbles.add(0, serviceDiscovery);
+      }
+      registrationManager.start();
+      closeAbles.add(0, registrationManager);
+      for (ServiceDiscovery<MyService> readDiscovery : readDiscoveries) {
+        if (readDiscovery != serviceDiscovery) {
+          readDiscovery.start();
+          closeAbles.add(0, readDiscovery);
+        }
+      }
+      closeAbles.addAll(0, cacheRecipes);
+      closeAbles.addAll(0, pathWatcherRecipes);
+      closeAbles.add(0, serviceProviderRecipe);
+      if (serviceCacheRecipe != null) {
+        closeAbles.add(0, serviceCacheRecipe);
+      }
+      started = true;
     } catch (Exception e) {
       throw new RuntimeException("Error starting Curator Framework/Discovery", e);
     }
@@ -191,6 +1067,14 @@ public final class ZooKeeperRecipes {
         e.printStackTrace();
       }
     }
+    final DegradedMode degraded = degradedMode;
+    if (degraded != null) {
+      degraded.close();
+    }
+    final RecipeMetrics m = metrics;
+    if (m != null) {
+      m.close();
+    }
   }
 
 //  private static void outputInstance(ServiceInstance<MyService> instance) {
@@ -1,15 +1,33 @@
 package poc.curator.services;
 
+import org.codehaus.jackson.annotate.JsonCreator;
 import org.codehaus.jackson.annotate.JsonIgnoreProperties;
+import org.codehaus.jackson.annotate.JsonProperty;
 import org.codehaus.jackson.map.annotate.JsonRootName;
 
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
 
+/**
+ * Fixed payload of the sample service. To describe any other service, build a {@link ServiceDescriptor} instead of
+ * writing a class like this one.
+ */
 @JsonRootName("service")
 @JsonIgnoreProperties(ignoreUnknown = true)
 public final class PaymentService implements MyService {
 
+  private static final Map<String, String> ENVIRONMENT;
+
+  static {
+    final Map<String, String> env = new HashMap<>();
+    env.put("ENV", "PRODUCTION");
+    env.put("ENV2", "SHOW ME THE MONEY");
+    ENVIRONMENT = Collections.unmodifiableMap(env);
+  }
+
+  private static final String STRING = PAYMENT_SERVICE + "{ v1, /myservices/payment, " + ENVIRONMENT + " }";
+
   @Override
   public String getName() {
     return PAYMENT_SERVICE;
@@ -27,14 +45,18 @@ public final class PaymentService implements MyService {
 
   @Override
   public Map<String, String> getEnvironment() {
-    final Map<String, String> env = new HashMap<>();
-    env.put("ENV", "PRODUCTION");
-    env.put("ENV2", "SHOW ME THE MONEY");
-    return env;
+    return ENVIRONMENT;
+  }
+
+  // Jackson reads a Map without a setter through its getter, which is unmodifiable here. Taking the environment as a
+  // creator property instead leaves it alone; it is fixed, so the written one is not kept.
+  @JsonCreator
+  static PaymentService fromJson(@JsonProperty("environment") Map<String, String> environment) {
+    return new PaymentService();
   }
 
   @Override
   public String toString() {
-    return getName() + "{ " + getVersion() + ", " + getURI() + ", " + getEnvironment() + " }" ;
+    return STRING;
   }
 }
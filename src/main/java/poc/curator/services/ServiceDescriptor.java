@@ -0,0 +1,182 @@
+package poc.curator.services;
+
+import org.codehaus.jackson.annotate.JsonCreator;
+import org.codehaus.jackson.annotate.JsonIgnore;
+import org.codehaus.jackson.annotate.JsonIgnoreProperties;
+import org.codehaus.jackson.annotate.JsonProperty;
+import org.codehaus.jackson.map.annotate.JsonRootName;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Immutable description of a service, so any service can be registered without writing a class for it.
+ *
+ * Everything is worked out once: the environment is copied into an unmodifiable map, and toString and the binary
+ * form of the payload are kept after their first use, so registering the same descriptor again does not encode it
+ * again.
+ */
+@JsonRootName("service")
+@JsonIgnoreProperties(ignoreUnknown = true)
+public final class ServiceDescriptor implements MyService {
+
+  private final String name;
+  private final String version;
+  private final String uri;
+  private final Map<String, String> environment;
+  private final int hashCode;
+  // both filled on first use, racing threads compute the same value.
+  private String string;
+  private volatile byte[] serialized;
+
+  @JsonCreator
+  public ServiceDescriptor(@JsonProperty("name") String name, @JsonProperty("version") String version,
+                           @JsonProperty("uri") String uri, @JsonProperty("environment") Map<String, String> environment) {
+    this.name = Objects.requireNonNull(name, "name");
+    this.version = version;
+    this.uri = uri;
+    this.environment = environment == null || environment.isEmpty() ? Collections.<String, String>emptyMap()
+        : Collections.unmodifiableMap(new LinkedHashMap<>(environment));
+    this.hashCode = Objects.hash(name, version, uri, this.environment);
+  }
+
+  public static Builder builder(String name) {
+    return new Builder(name);
+  }
+
+  /**
+   * @return the service itself when it already is a descriptor, otherwise a descriptor with its values.
+   */
+  public static ServiceDescriptor of(MyService service) {
+    if (service instanceof ServiceDescriptor) {
+      return (ServiceDescriptor) service;
+    }
+    return new ServiceDescriptor(service.getName(), service.getVersion(), service.getURI(), service.getEnvironment());
+  }
+
+  @Override
+  public String getName() {
+    return name;
+  }
+
+  @Override
+  public String getVersion() {
+    return version;
+  }
+
+  @Override
+  public String getURI() {
+    return uri;
+  }
+
+  @Override
+  public Map<String, String> getEnvironment() {
+    return environment;
+  }
+
+  /**
+   * Name, version, uri and environment as length-prefixed UTF-8 strings, the payload part of the
+   * {@code BinaryInstanceSerializer} format. Lengths are varints of length + 1, 0 marks null. The bytes are encoded
+   * once, every call returns a new read-only view of them.
+   */
+  @JsonIgnore
+  public ByteBuffer getSerialized() {
+    byte[] bytes = serialized;
+    if (bytes == null) {
+      final ByteArrayOutputStream out = new ByteArrayOutputStream(64);
+      writeString(out, name);
+      writeString(out, version);
+      writeString(out, uri);
+      writeLength(out, environment.size());
+      for (Map.Entry<String, String> entry : environment.entrySet()) {
+        writeString(out, entry.getKey());
+        writeString(out, entry.getValue());
+      }
+      bytes = out.toByteArray();
+      serialized = bytes;
+    }
+    return ByteBuffer.wrap(bytes).asReadOnlyBuffer();
+  }
+
+  private static void writeLength(ByteArrayOutputStream out, int length) {
+    int value = length + 1;
+    while ((value & ~0x7F) != 0) {
+      out.write((value & 0x7F) | 0x80);
+      value >>>= 7;
+    }
+    out.write(value);
+  }
+
+  private static void writeString(ByteArrayOutputStream out, String value) {
+    if (value == null) {
+      writeLength(out, -1);
+      return;
+    }
+    final byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+    writeLength(out, bytes.length);
+    out.write(bytes, 0, bytes.length);
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (this == o) {
+      return true;
+    }
+    if (!(o instanceof ServiceDescriptor)) {
+      return false;
+    }
+    final ServiceDescriptor other = (ServiceDescriptor) o;
+    return hashCode == other.hashCode && name.equals(other.name) && Objects.equals(version, other.version)
+        && Objects.equals(uri, other.uri) && environment.equals(other.environment);
+  }
+
+  @Override
+  public int hashCode() {
+    return hashCode;
+  }
+
+  @Override
+  public String toString() {
+    String s = string;
+    if (s == null) {
+      s = getName() + "{ " + getVersion() + ", " + getURI() + ", " + getEnvironment() + " }";
+      string = s;
+    }
+    return s;
+  }
+
+  public static final class Builder {
+    private final String name;
+    private String version;
+    private String uri;
+    private final Map<String, String> environment = new LinkedHashMap<>();
+
+    private Builder(String name) {
+      this.name = name;
+    }
+
+    public Builder version(String version) {
+      this.version = version;
+      return this;
+    }
+
+    public Builder uri(String uri) {
+      this.uri = uri;
+      return this;
+    }
+
+    public Builder env(String key, String value) {
+      environment.put(key, value);
+      return this;
+    }
+
+    public ServiceDescriptor build() {
+      return new ServiceDescriptor(name, version, uri, environment);
+    }
+  }
+}
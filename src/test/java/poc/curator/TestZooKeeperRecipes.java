@@ -1,21 +1,54 @@
 package poc.curator;
 
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.CuratorFrameworkFactory;
+import org.apache.curator.framework.imps.CuratorFrameworkState;
+import org.apache.curator.framework.recipes.cache.ChildData;
+import org.apache.curator.framework.state.ConnectionState;
+import org.apache.curator.retry.RetryOneTime;
+import org.apache.curator.test.KillSession;
 import org.apache.curator.test.TestingServer;
 import org.apache.curator.utils.CloseableUtils;
 import org.apache.curator.utils.ZKPaths;
+import org.apache.curator.x.discovery.ProviderStrategy;
+import org.apache.curator.x.discovery.ServiceDiscovery;
+import org.apache.curator.x.discovery.ServiceDiscoveryBuilder;
 import org.apache.curator.x.discovery.ServiceInstance;
+import org.apache.curator.x.discovery.ServiceProvider;
+import org.apache.curator.x.discovery.ServiceType;
+import org.apache.curator.x.discovery.details.JsonInstanceSerializer;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.data.Stat;
 import org.junit.*;
 import poc.curator.services.MyService;
 import poc.curator.services.OrdersService;
 import poc.curator.services.PaymentService;
+import poc.curator.services.ServiceDescriptor;
 
+import javax.management.ObjectName;
+import javax.management.openmbean.TabularData;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.BrokenBarrierException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 import static org.junit.Assert.*;
 
@@ -23,6 +56,8 @@ public class TestZooKeeperRecipes {
 
   private static TestingServer server;
   private static ZooKeeperRecipes zooKeeperRecipes = null;
+  // plain client used to clean up after tests that register their own services.
+  private static CuratorFramework client = null;
 
   @BeforeClass
   public static void setupInitial() {
@@ -30,6 +65,8 @@ public class TestZooKeeperRecipes {
       server = new TestingServer();
       zooKeeperRecipes = new ZooKeeperRecipes(server.getConnectString());
       zooKeeperRecipes.start();
+      client = CuratorFrameworkFactory.newClient(server.getConnectString(), new RetryOneTime(100));
+      client.start();
     } catch (Exception e) {
       e.printStackTrace();
     }
@@ -38,6 +75,7 @@ public class TestZooKeeperRecipes {
   @AfterClass
   public static void tearDownFinal() {
     zooKeeperRecipes.close();
+    CloseableUtils.closeQuietly(client);
     CloseableUtils.closeQuietly(server);
   }
 
@@ -141,11 +179,16 @@ public class TestZooKeeperRecipes {
     Collection<ServiceInstance<MyService>> instances = null;
     try {
       final List<List<String>> dataList = new ArrayList<>();
+      // The initial load of the tree also reports the service nodes left by other tests, only count instances.
+      final String instancePrefix = ZKPaths.makePath(Config.SERVICES_PATH, MyService.ORDERS_SERVICE) + "/";
       CyclicBarrier barrier = new CyclicBarrier(2);
       PathWatcherRecipe.PathListener listener = new PathWatcherRecipe.PathListener() {
 
         @Override
         public void nodeAdded(String path, String data) {
+          if (!path.startsWith(instancePrefix)) {
+            return;
+          }
           List<String> values = new ArrayList<>();
           values.add("ADD");
           values.add(path);
@@ -159,6 +202,9 @@ public class TestZooKeeperRecipes {
 
         @Override
         public void nodeDeleted(String path, String data) {
+          if (!path.startsWith(instancePrefix)) {
+            return;
+          }
           List<String> values = new ArrayList<>();
           values.add("DELETE");
           values.add(path);
@@ -258,4 +304,1147 @@ public class TestZooKeeperRecipes {
       fail("Got exception in testNodePathWatcher");
     }
   }
+
+  @Test
+  public void testCachedDiscovery() throws Exception {
+    final ZooKeeperRecipes cachedRecipes = new ZooKeeperRecipes(server.getConnectString(), true);
+    try {
+      cachedRecipes.start();
+      assertEquals("Expecting no services", 0, cachedRecipes.discover("CachedService").size());
+
+      final OrdersService ordersService = new OrdersService();
+      cachedRecipes.registerService("CachedService", 4000, ordersService);
+      assertTrue("Cache did not pick up registration", waitForInstances(cachedRecipes, "CachedService", 1));
+
+      cachedRecipes.unregisterService("CachedService", 4000);
+      assertTrue("Cache did not pick up unregistration", waitForInstances(cachedRecipes, "CachedService", 0));
+    } finally {
+      cachedRecipes.close();
+      removeServicePath("CachedService");
+    }
+
+    // a lookup after close must not start a new cache while the discovery is still running.
+    final ServiceDiscovery<MyService> discovery = ServiceDiscoveryBuilder.builder(MyService.class).client(client)
+        .basePath(Config.SERVICES_PATH).build();
+    discovery.start();
+    try {
+      final ServiceCacheRecipe<MyService> caches = new ServiceCacheRecipe<>(discovery);
+      assertEquals("Expecting no services", 0, caches.getInstances("CachedService").size());
+      caches.close();
+      try {
+        caches.getCache("CachedService");
+        fail("Expecting the closed caches to be rejected");
+      } catch (IllegalStateException e) {
+        // expected
+      }
+    } finally {
+      discovery.close();
+    }
+  }
+
+  @Test
+  public void testDiscoverAllParallel() throws Exception {
+    assertEquals("Expecting 0 service(s)", 0, zooKeeperRecipes.discoverAllParallel().size());
+    for (int i = 0; i < 5; i++) {
+      zooKeeperRecipes.registerService("ParallelService" + i, 5000 + i, new OrdersService());
+    }
+    try {
+      final List<ServiceInstance<MyService>> sequential = zooKeeperRecipes.discoverAll();
+      final List<ServiceInstance<MyService>> parallel = zooKeeperRecipes.discoverAllParallel();
+      assertEquals("Expecting 5 service(s)", 5, parallel.size());
+      assertEquals("Different instances or order", ids(sequential), ids(parallel));
+    } finally {
+      for (int i = 0; i < 5; i++) {
+        zooKeeperRecipes.unregisterService("ParallelService" + i, 5000 + i);
+        removeServicePath("ParallelService" + i);
+      }
+    }
+  }
+
+  @Test
+  public void testProviderRoundRobin() throws Exception {
+    final ServiceProvider<MyService> provider = zooKeeperRecipes.provider("BalancedService");
+    assertNull("Expecting no instance", provider.getInstance());
+
+    zooKeeperRecipes.registerService("BalancedService", 6001, new OrdersService());
+    zooKeeperRecipes.registerService("BalancedService", 6002, new PaymentService());
+    try {
+      final long end = System.currentTimeMillis() + 1000;
+      while (provider.getAllInstances().size() < 2 && System.currentTimeMillis() < end) {
+        Thread.sleep(10);
+      }
+      final Set<Integer> ports = new HashSet<>();
+      for (int i = 0; i < 4; i++) {
+        ports.add(provider.getInstance().getPort());
+      }
+      assertEquals("Expecting both instances to be picked", 2, ports.size());
+      assertSame("Provider not cached", provider, zooKeeperRecipes.provider("BalancedService"));
+    } finally {
+      zooKeeperRecipes.unregisterService("BalancedService", 6001);
+      zooKeeperRecipes.unregisterService("BalancedService", 6002);
+      removeServicePath("BalancedService");
+    }
+  }
+
+  @Test
+  public void testLeastRecentlyUsedStrategy() throws Exception {
+    final List<ServiceInstance<MyService>> instances = new ArrayList<>();
+    for (int port = 7001; port <= 7003; port++) {
+      instances.add(ServiceInstance.<MyService>builder().name("LruService").port(port).payload(new OrdersService()).build());
+    }
+    final ProviderStrategy<MyService> strategy = ProviderStrategies.Type.LEAST_RECENTLY_USED.create();
+    final Set<Integer> ports = new HashSet<>();
+    for (int i = 0; i < 3; i++) {
+      ports.add(strategy.getInstance(() -> instances).getPort());
+    }
+    assertEquals("Expecting every instance once", 3, ports.size());
+
+    // instances coming and going get pruned, the ones still up keep their turn.
+    for (int port = 7100; port < 7130; port++) {
+      final List<ServiceInstance<MyService>> withTransient = new ArrayList<>(instances);
+      withTransient.add(ServiceInstance.<MyService>builder().name("LruService").port(port).payload(new OrdersService()).build());
+      assertEquals("Expecting the new instance first", port, (int) strategy.getInstance(() -> withTransient).getPort());
+    }
+    final List<ServiceInstance<MyService>> reversed = new ArrayList<>(instances);
+    Collections.reverse(reversed);
+    assertEquals("Expecting the least recently used", 7001, (int) strategy.getInstance(() -> reversed).getPort());
+  }
+
+  @Test
+  public void testBatchRegistration() throws Exception {
+    final List<ServiceInstance<MyService>> batch = new ArrayList<>();
+    for (int i = 0; i < 10; i++) {
+      batch.add(zooKeeperRecipes.newServiceInstance("BatchService", 8000 + i, new PaymentService()));
+    }
+    try {
+      final BatchResult registered = zooKeeperRecipes.registerServices(batch);
+      assertEquals("Batch size", 10, registered.getCount());
+      assertEquals("Expecting 10 service(s)", 10, zooKeeperRecipes.discover("BatchService").size());
+
+      // one instance already gone: the whole batch must be rejected.
+      zooKeeperRecipes.unregisterService("BatchService", 8000);
+      try {
+        zooKeeperRecipes.unregisterServices(batch);
+        fail("Expected the batch to fail");
+      } catch (KeeperException.NoNodeException e) {
+        // expected
+      }
+      assertEquals("Expecting 9 service(s)", 9, zooKeeperRecipes.discover("BatchService").size());
+
+      zooKeeperRecipes.unregisterServices(batch.subList(1, batch.size()));
+      assertEquals("Expecting 0 service(s)", 0, zooKeeperRecipes.discover("BatchService").size());
+    } finally {
+      removeServicePath("BatchService");
+    }
+  }
+
+  @Test
+  public void testAsyncData() throws Exception {
+    final List<CompletableFuture<Void>> writes = new ArrayList<>();
+    for (int i = 0; i < 50; i++) {
+      writes.add(zooKeeperRecipes.setDataAsync("async/key" + i, "value" + i));
+    }
+    CompletableFuture.allOf(writes.toArray(new CompletableFuture<?>[0])).get(5, TimeUnit.SECONDS);
+
+    final List<CompletableFuture<String>> reads = new ArrayList<>();
+    for (int i = 0; i < 50; i++) {
+      reads.add(zooKeeperRecipes.getDataAsync("async/key" + i));
+    }
+    for (int i = 0; i < 50; i++) {
+      assertEquals("Values different", "value" + i, reads.get(i).get(5, TimeUnit.SECONDS));
+    }
+
+    zooKeeperRecipes.setDataAsync("async/key0", "updated").get(5, TimeUnit.SECONDS);
+    assertEquals("Values different", "updated", zooKeeperRecipes.getData("async/key0"));
+
+    final List<CompletableFuture<Void>> removes = new ArrayList<>();
+    for (int i = 0; i < 50; i++) {
+      removes.add(zooKeeperRecipes.removeAsync("async/key" + i));
+    }
+    CompletableFuture.allOf(removes.toArray(new CompletableFuture<?>[0])).get(5, TimeUnit.SECONDS);
+    assertNull("Expecting no data", zooKeeperRecipes.getDataAsync("async/key1").get(5, TimeUnit.SECONDS));
+  }
+
+  @Test
+  public void testUpsertAndCompareAndSet() throws Exception {
+    zooKeeperRecipes.upsertData("upsert/a/b", "first");
+    assertEquals("Values different", "first", zooKeeperRecipes.getData("upsert/a/b"));
+    zooKeeperRecipes.upsertData("upsert/a/b", "second");
+    zooKeeperRecipes.upsertData("upsert/a/c", "sibling");
+    assertEquals("Values different", "second", zooKeeperRecipes.getData("upsert/a/b"));
+    assertEquals("Values different", "sibling", zooKeeperRecipes.getData("upsert/a/c"));
+
+    // removed behind our back: upsert must create it again.
+    zooKeeperRecipes.remove("upsert/a/b");
+    zooKeeperRecipes.upsertData("upsert/a/b", "third");
+    assertEquals("Values different", "third", zooKeeperRecipes.getData("upsert/a/b"));
+
+    // wrong guesses: created by someone else under a known parent, and removed by someone else.
+    client.create().forPath(ZKPaths.makePath(Config.CONFIG_PATH, "upsert/a/other"), "theirs".getBytes());
+    zooKeeperRecipes.upsertData("upsert/a/other", "ours");
+    assertEquals("Values different", "ours", zooKeeperRecipes.getData("upsert/a/other"));
+    client.delete().forPath(ZKPaths.makePath(Config.CONFIG_PATH, "upsert/a/c"));
+    zooKeeperRecipes.upsertData("upsert/a/c", "again");
+    assertEquals("Values different", "again", zooKeeperRecipes.getData("upsert/a/c"));
+
+    final Stat stat = new Stat();
+    zooKeeperRecipes.getData("upsert/a/b", stat);
+    assertTrue("CAS should succeed", zooKeeperRecipes.compareAndSetData("upsert/a/b", "fourth", stat.getVersion()));
+    assertFalse("CAS should fail on stale version", zooKeeperRecipes.compareAndSetData("upsert/a/b", "fifth", stat.getVersion()));
+    assertFalse("Node exists", zooKeeperRecipes.createIfAbsent("upsert/a/b", "sixth"));
+    assertEquals("Values different", "fourth", zooKeeperRecipes.getData("upsert/a/b"));
+    assertTrue("Node is new", zooKeeperRecipes.createIfAbsent("upsert/d/e", "created"));
+    assertEquals("Values different", "created", zooKeeperRecipes.getData("upsert/d/e"));
+    // -1 is any version, as in ZooKeeper.
+    assertTrue("CAS should succeed", zooKeeperRecipes.compareAndSetData("upsert/d/e", "any", -1));
+    assertFalse("Node is missing", zooKeeperRecipes.compareAndSetData("upsert/d/missing", "none", -1));
+    assertEquals("Values different", "any", zooKeeperRecipes.getData("upsert/d/e"));
+  }
+
+  @Test
+  public void testDataCache() throws Exception {
+    final ZooKeeperRecipes cachedRecipes = new ZooKeeperRecipes(server.getConnectString());
+    try {
+      cachedRecipes.start();
+      final DataCacheRecipe cache = cachedRecipes.enableDataCache(1024, 0, TimeUnit.SECONDS);
+
+      zooKeeperRecipes.setData("cached/key", "value1");
+      assertEquals("Values different", "value1", cachedRecipes.getData("cached/key"));
+      assertEquals("Values different", "value1", cachedRecipes.getData("cached/key"));
+      assertEquals("Misses", 1, cache.getMisses());
+      assertEquals("Hits", 1, cache.getHits());
+
+      // written by another client: the watch must drop the entry.
+      zooKeeperRecipes.setData("cached/key", "value2");
+      final long end = System.currentTimeMillis() + 1000;
+      while (cache.getInvalidations() == 0 && System.currentTimeMillis() < end) {
+        Thread.sleep(10);
+      }
+      assertEquals("Values different", "value2", cachedRecipes.getData("cached/key"));
+
+      // absent nodes are cached too, until they show up.
+      assertNull("Expecting no data", cachedRecipes.getData("cached/missing"));
+      cachedRecipes.setData("cached/missing", "here");
+      assertEquals("Values different", "here", cachedRecipes.getData("cached/missing"));
+
+      // way over the byte budget: older entries get evicted.
+      final StringBuilder big = new StringBuilder();
+      for (int i = 0; i < 600; i++) {
+        big.append('x');
+      }
+      zooKeeperRecipes.setData("cached/big1", big.toString());
+      zooKeeperRecipes.setData("cached/big2", big.toString());
+      cachedRecipes.getData("cached/big1");
+      cachedRecipes.getData("cached/big2");
+      assertTrue("Expecting evictions", cache.getEvictions() > 0);
+      assertTrue("Over budget", cache.getBytes() <= 1024);
+    } finally {
+      cachedRecipes.close();
+    }
+  }
+
+  @Test
+  public void testByteCacheListener() throws Exception {
+    final List<String> values = new ArrayList<>();
+    final List<Integer> versions = new ArrayList<>();
+    final CountDownLatch latch = new CountDownLatch(2);
+    zooKeeperRecipes.addDataWatch("bytes", (String path, ByteBuffer data, Stat stat) -> {
+      assertTrue("Expecting a read-only view", data.isReadOnly());
+      values.add(StandardCharsets.UTF_8.decode(data).toString());
+      versions.add(stat.getVersion());
+      latch.countDown();
+    });
+    zooKeeperRecipes.setData("bytes", "v\u00e9rsion0");
+    Thread.sleep(200);
+    zooKeeperRecipes.setData("bytes", "version1");
+    latch.await(1, TimeUnit.SECONDS);
+
+    assertEquals("Values different", "v\u00e9rsion0", values.get(0));
+    assertEquals("Values different", "version1", values.get(values.size() - 1));
+    assertEquals("Versions not increasing", values.size(), new HashSet<>(versions).size());
+  }
+
+  @Test
+  public void testCoalescedCacheListener() throws Exception {
+    final List<String> values = new CopyOnWriteArrayList<>();
+    zooKeeperRecipes.addDataWatch("burst", values::add, 200, 1000, TimeUnit.MILLISECONDS);
+    for (int i = 0; i < 20; i++) {
+      zooKeeperRecipes.setData("burst", "value" + i);
+    }
+    final long end = System.currentTimeMillis() + 2000;
+    while (!values.contains("value19") && System.currentTimeMillis() < end) {
+      Thread.sleep(10);
+    }
+    assertEquals("Latest value not delivered", "value19", values.get(values.size() - 1));
+    assertTrue("Burst not coalesced: " + values, values.size() < 20);
+  }
+
+  @Test
+  public void testSharedWatches() throws Exception {
+    final PathWatcherRecipe watcher = zooKeeperRecipes.getPathWatcher();
+    final String treePath = ZKPaths.makePath(Config.CONFIG_PATH, "shared");
+    zooKeeperRecipes.setData("shared/first", "value1");
+
+    final List<String> first = new CopyOnWriteArrayList<>();
+    final List<String> second = new CopyOnWriteArrayList<>();
+    final WatchHandle firstHandle = watcher.subscribeTree(treePath, recordingListener(first));
+    final WatchHandle secondHandle = watcher.subscribeTree(treePath, recordingListener(second));
+    assertEquals("Expecting one shared cache", 2, watcher.treeSubscribers(treePath));
+
+    // the second subscriber joined a running cache and gets its content replayed.
+    waitFor(() -> first.contains("ADD " + treePath + "/first") && second.contains("ADD " + treePath + "/first"));
+
+    // a subscriber joining while the tree changes gets every node added once, before any update of it.
+    final Thread writer = new Thread(() -> {
+      for (int i = 0; i < 50; i++) {
+        zooKeeperRecipes.setData("shared/burst" + i % 5, "value" + i);
+      }
+    });
+    writer.start();
+    final List<String> late = new CopyOnWriteArrayList<>();
+    final WatchHandle lateHandle = watcher.subscribeTree(treePath, recordingListener(late));
+    writer.join();
+    zooKeeperRecipes.setData("shared/last", "done");
+    waitFor(() -> late.contains("ADD " + treePath + "/last"));
+    for (int i = 0; i < 5; i++) {
+      final String added = "ADD " + treePath + "/burst" + i;
+      assertEquals("Expecting one add of " + added, 1, Collections.frequency(late, added));
+      final int updated = late.indexOf("UPDATE " + treePath + "/burst" + i);
+      assertTrue("Update before add of " + added, updated < 0 || updated > late.indexOf(added));
+    }
+    lateHandle.close();
+
+    firstHandle.close();
+    assertEquals("Expecting one subscriber", 1, watcher.treeSubscribers(treePath));
+    zooKeeperRecipes.setData("shared/second", "value2");
+    waitFor(() -> second.contains("ADD " + treePath + "/second"));
+    assertFalse("Unsubscribed listener still called", first.contains("ADD " + treePath + "/second"));
+
+    secondHandle.close();
+    secondHandle.close();
+    assertEquals("Expecting the cache to be gone", 0, watcher.treeSubscribers(treePath));
+  }
+
+  private static PathWatcherRecipe.PathListener recordingListener(final List<String> events) {
+    return new PathWatcherRecipe.PathListener() {
+      @Override
+      public void nodeAdded(String path, String data) {
+        events.add("ADD " + path);
+      }
+
+      @Override
+      public void nodeDeleted(String path, String data) {
+        events.add("DELETE " + path);
+      }
+
+      @Override
+      public void nodeUpdated(String path, String data) {
+        events.add("UPDATE " + path);
+      }
+    };
+  }
+
+  private interface Condition {
+    boolean met();
+  }
+
+  private static void waitFor(Condition condition) throws InterruptedException {
+    final long end = System.currentTimeMillis() + 2000;
+    while (!condition.met() && System.currentTimeMillis() < end) {
+      Thread.sleep(10);
+    }
+    assertTrue("Timed out waiting", condition.met());
+  }
+
+  @Test
+  public void testCompactTreeWatch() throws Exception {
+    final String treePath = ZKPaths.makePath(Config.CONFIG_PATH, "compact");
+    for (int i = 0; i < 20; i++) {
+      // the same key names in every group, as config trees usually have.
+      zooKeeperRecipes.setData("compact/group" + (i % 4) + "/key" + (i / 4), "value" + i);
+    }
+    final List<String> events = new CopyOnWriteArrayList<>();
+    final CompactTreeWatch watch = zooKeeperRecipes.getPathWatcher().addCompactTreeWatch(treePath, recordingListener(events));
+    // children are read in no particular order, so wait for all of them.
+    waitFor(() -> watch.size() == 25);
+    assertEquals("Values different", "value7", new String(watch.getData(treePath + "/group3/key1")));
+    assertEquals("Expecting 5 children", 5, watch.getChildren(treePath + "/group1").size());
+    // root, 4 groups and 20 keys
+    assertEquals("Node count", 25, watch.size());
+
+    zooKeeperRecipes.setData("compact/group3/key1", "changed");
+    waitFor(() -> "changed".equals(new String(watch.getData(treePath + "/group3/key1"))));
+
+    zooKeeperRecipes.remove("compact/group3/key1");
+    waitFor(() -> !watch.exists(treePath + "/group3/key1"));
+    assertTrue("Delete not reported", events.contains("DELETE " + treePath + "/group3/key1"));
+
+    zooKeeperRecipes.setData("compact/group4/key0", "added");
+    waitFor(() -> watch.exists(treePath + "/group4/key0"));
+    assertTrue("Add not reported", events.contains("ADD " + treePath + "/group4/key0"));
+    zooKeeperRecipes.remove("compact/group4/key0");
+    zooKeeperRecipes.remove("compact/group4");
+    waitFor(() -> !watch.exists(treePath + "/group4"));
+
+    final CompactTreeWatch.MemoryReport report = watch.memoryReport();
+    assertEquals("Node count", 24, report.getNodes());
+    // myapp, config, compact, group0-3 and key0-4; group4 went with its last node.
+    assertEquals("Name count", 12, report.getSegments());
+    assertTrue("Expecting less heap than a TreeCache: " + report, report.getHeapBytes() < report.getTreeCacheBytes());
+  }
+
+  @Test
+  public void testCompactTreeWatchRootRecreated() throws Exception {
+    final String treePath = ZKPaths.makePath(Config.CONFIG_PATH, "compactRoot");
+    zooKeeperRecipes.setData("compactRoot/key", "first");
+    final List<String> events = new CopyOnWriteArrayList<>();
+    final CompactTreeWatch watch = zooKeeperRecipes.getPathWatcher().addCompactTreeWatch(treePath, recordingListener(events));
+    try {
+      waitFor(() -> watch.exists(treePath + "/key"));
+
+      client.delete().deletingChildrenIfNeeded().forPath(treePath);
+      waitFor(() -> watch.size() == 0);
+      assertTrue("Delete not reported", events.contains("DELETE " + treePath));
+      assertEquals("Expecting only the root path's names", 3, watch.memoryReport().getSegments());
+
+      // the root comes back: the watch must pick it up again, with what is created below it.
+      zooKeeperRecipes.setData("compactRoot/key", "second");
+      waitFor(() -> watch.exists(treePath + "/key"));
+      assertEquals("Values different", "second", new String(watch.getData(treePath + "/key")));
+      assertEquals("Node count", 2, watch.size());
+    } finally {
+      watch.close();
+      client.delete().deletingChildrenIfNeeded().forPath(treePath);
+    }
+  }
+
+  @Test
+  public void testLeanDispatch() throws Exception {
+    final TestingServer ownServer = new TestingServer();
+    final ZooKeeperRecipes recipes = new ZooKeeperRecipes(ownServer.getConnectString());
+    try {
+      recipes.start();
+      recipes.getPathWatcher().setLeanDispatch(true);
+      recipes.setData("lean/key", "value");
+
+      final List<ChildData> added = new CopyOnWriteArrayList<>();
+      final List<ConnectionState> states = new CopyOnWriteArrayList<>();
+      recipes.getPathWatcher().subscribePath("lean", new PathWatcherRecipe.RawPathListener() {
+        @Override
+        public void nodeAdded(ChildData data) {
+          added.add(data);
+        }
+
+        @Override
+        public void nodeDeleted(ChildData data) {
+        }
+
+        @Override
+        public void nodeUpdated(ChildData data) {
+        }
+
+        @Override
+        public void connectionStateChanged(ConnectionState newState) {
+          states.add(newState);
+        }
+      });
+      waitFor(() -> added.size() == 1);
+      assertEquals("Values different", "value", PathWatcherRecipe.decode(added.get(0)));
+
+      // connection events carry no data and must reach the listener.
+      ownServer.stop();
+      waitFor(() -> states.contains(ConnectionState.SUSPENDED));
+      ownServer.restart();
+      waitFor(() -> states.contains(ConnectionState.RECONNECTED));
+    } finally {
+      recipes.close();
+      CloseableUtils.closeQuietly(ownServer);
+    }
+  }
+
+  @Test
+  public void testOrderedDispatcher() throws Exception {
+    final ZooKeeperRecipes recipes = new ZooKeeperRecipes(server.getConnectString());
+    try {
+      recipes.start();
+      final RecipeMetrics metrics = recipes.enableMetrics(null);
+      final OrderedDispatcher dispatcher = recipes.getPathWatcher().enableDispatcher(2, 4, false);
+      final String treePath = ZKPaths.makePath(Config.CONFIG_PATH, "ordered");
+      final String keyPath = ZKPaths.makePath(treePath, "key");
+      recipes.setData("ordered/key", "0");
+
+      final List<String> values = new CopyOnWriteArrayList<>();
+      final List<String> threads = new CopyOnWriteArrayList<>();
+      recipes.getPathWatcher().addTreeWatch(treePath, new PathWatcherRecipe.PathListener() {
+        @Override
+        public void nodeAdded(String path, String data) {
+          record(path, data);
+        }
+
+        @Override
+        public void nodeDeleted(String path, String data) {
+        }
+
+        @Override
+        public void nodeUpdated(String path, String data) {
+          record(path, data);
+        }
+
+        private void record(String path, String data) {
+          if (path.equals(keyPath)) {
+            values.add(data);
+            threads.add(Thread.currentThread().getName());
+          }
+        }
+      });
+      waitFor(() -> values.contains("0"));
+      for (int i = 1; i <= 5; i++) {
+        recipes.setData("ordered/key", String.valueOf(i));
+      }
+      waitFor(() -> values.contains("5"));
+
+      // updates may be merged by the cache, but never reordered.
+      for (int i = 1; i < values.size(); i++) {
+        assertTrue("Out of order: " + values, Integer.parseInt(values.get(i - 1)) < Integer.parseInt(values.get(i)));
+      }
+      assertTrue("Not called on a worker: " + threads, threads.get(0).startsWith("OrderedDispatcher-"));
+      assertEquals("Expecting one worker per path", 1, new HashSet<>(threads).size());
+      assertTrue("Nothing dispatched", dispatcher.getDispatched() > 0);
+      assertEquals("Expecting empty queues", 0, dispatcher.getQueueDepth());
+      assertEquals("Expecting the queue depth gauge", Collections.singletonList(0),
+          new ArrayList<>(metrics.getQueueDepths().values()));
+      recipes.remove("ordered/key");
+      recipes.remove("ordered");
+
+      // once closed, events from the cache's event thread are dropped instead of failing it.
+      dispatcher.close();
+      dispatcher.dispatch(keyPath, () -> values.add("late"));
+      assertEquals("Expecting a dropped task", 1, dispatcher.getDropped());
+      assertFalse("Closed dispatcher ran a task", values.contains("late"));
+    } finally {
+      recipes.close();
+    }
+  }
+
+  @Test
+  public void testBulkInitialLoad() throws Exception {
+    final PathWatcherRecipe watcher = zooKeeperRecipes.getPathWatcher();
+    final String treePath = ZKPaths.makePath(Config.CONFIG_PATH, "bulk");
+    for (int i = 0; i < 3; i++) {
+      zooKeeperRecipes.setData("bulk/key" + i, "value" + i);
+    }
+
+    final List<Map<String, byte[]>> snapshots = new CopyOnWriteArrayList<>();
+    final List<String> events = new CopyOnWriteArrayList<>();
+    final PathWatcherRecipe.PathListener listener = new PathWatcherRecipe.PathListener() {
+      @Override
+      public void initialSnapshot(Map<String, byte[]> snapshot) {
+        snapshots.add(snapshot);
+      }
+
+      @Override
+      public void nodeAdded(String path, String data) {
+        events.add("ADD " + path);
+      }
+
+      @Override
+      public void nodeDeleted(String path, String data) {
+        events.add("DELETE " + path);
+      }
+
+      @Override
+      public void nodeUpdated(String path, String data) {
+        events.add("UPDATE " + path);
+      }
+    };
+    final WatchHandle first = watcher.subscribeTree(treePath, listener, true);
+    first.initialized().get(2, TimeUnit.SECONDS);
+    assertEquals("Expecting one snapshot", 1, snapshots.size());
+    assertEquals("Expecting the root and 3 keys", 4, snapshots.get(0).size());
+    assertEquals("Values different", "value1",
+        new String(snapshots.get(0).get(treePath + "/key1"), StandardCharsets.UTF_8));
+    assertTrue("Expecting no single adds: " + events, events.isEmpty());
+
+    // joining a warm cache gets its snapshot right away.
+    final WatchHandle second = watcher.subscribeTree(treePath, listener, true);
+    assertTrue("Expecting a warm cache", second.initialized().isDone());
+    assertEquals("Expecting a second snapshot", 2, snapshots.size());
+
+    zooKeeperRecipes.setData("bulk/key0", "changed");
+    waitFor(() -> events.size() == 2);
+    assertEquals("Expecting updates only", "UPDATE " + treePath + "/key0", events.get(0));
+
+    first.close();
+    second.close();
+    for (int i = 0; i < 3; i++) {
+      zooKeeperRecipes.remove("bulk/key" + i);
+    }
+    zooKeeperRecipes.remove("bulk");
+  }
+
+  @Test
+  public void testSnapshotStore() throws Exception {
+    final PathWatcherRecipe watcher = zooKeeperRecipes.getPathWatcher();
+    final String treePath = ZKPaths.makePath(Config.CONFIG_PATH, "snap");
+    final Path file = Files.createTempFile("snapshot", ".log");
+    zooKeeperRecipes.setData("snap/a", "1");
+    zooKeeperRecipes.setData("snap/b", "2");
+    try {
+      final List<String> events = new CopyOnWriteArrayList<>();
+      try (SnapshotStore store = new SnapshotStore(file)) {
+        final WatchHandle handle = watcher.subscribeTree(treePath, recordingListener(events), store);
+        handle.initialized().get(2, TimeUnit.SECONDS);
+        handle.close();
+        assertEquals("Expecting everything as added: " + events, 3, events.size());
+        assertEquals("Expecting 3 stored nodes", 3, store.size());
+      }
+
+      // changes while "down" are the only thing reported after the restart.
+      zooKeeperRecipes.setData("snap/a", "changed");
+      zooKeeperRecipes.remove("snap/b");
+      zooKeeperRecipes.setData("snap/c", "3");
+      events.clear();
+      final List<Map<String, byte[]>> snapshots = new CopyOnWriteArrayList<>();
+      try (SnapshotStore store = new SnapshotStore(file)) {
+        final PathWatcherRecipe.PathListener recording = recordingListener(events);
+        final WatchHandle handle = watcher.subscribeTree(treePath, new PathWatcherRecipe.PathListener() {
+          @Override
+          public void initialSnapshot(Map<String, byte[]> snapshot) {
+            snapshots.add(snapshot);
+          }
+
+          @Override
+          public void nodeAdded(String path, String data) {
+            recording.nodeAdded(path, data);
+          }
+
+          @Override
+          public void nodeDeleted(String path, String data) {
+            recording.nodeDeleted(path, data);
+          }
+
+          @Override
+          public void nodeUpdated(String path, String data) {
+            recording.nodeUpdated(path, data);
+          }
+        }, store);
+        assertEquals("Expecting the stored tree right away", 3, snapshots.get(0).size());
+        assertEquals("Values different", "2", new String(snapshots.get(0).get(treePath + "/b"), StandardCharsets.UTF_8));
+        handle.initialized().get(2, TimeUnit.SECONDS);
+        handle.close();
+        assertEquals("Expecting only the differences: " + events, 3, events.size());
+        assertTrue(events.contains("UPDATE " + treePath + "/a"));
+        assertTrue(events.contains("DELETE " + treePath + "/b"));
+        assertTrue(events.contains("ADD " + treePath + "/c"));
+        assertEquals("Values different", "changed", new String(store.getData(treePath + "/a"), StandardCharsets.UTF_8));
+      }
+    } finally {
+      zooKeeperRecipes.remove("snap/a");
+      zooKeeperRecipes.remove("snap/c");
+      zooKeeperRecipes.remove("snap");
+      Files.deleteIfExists(file);
+    }
+  }
+
+  @Test
+  public void testMetrics() throws Exception {
+    final ZooKeeperRecipes recipes = new ZooKeeperRecipes(server.getConnectString());
+    try {
+      // before start, so the first CONNECTED is counted.
+      final RecipeMetrics metrics = recipes.enableMetrics("testMetrics");
+      recipes.start();
+      recipes.enableDataCache(1024, 0, TimeUnit.SECONDS);
+      final List<String> changes = new CopyOnWriteArrayList<>();
+      recipes.addDataWatch("metrics", (CacheRecipe.CacheListener) changes::add);
+      for (int i = 0; i < 10; i++) {
+        recipes.setData("metrics", "value" + i);
+        recipes.getData("metrics");
+      }
+      try {
+        recipes.unregisterServices(Collections.singletonList(
+            recipes.newServiceInstance(MyService.ORDERS_SERVICE, 4000, new OrdersService())));
+        fail("Expecting the missing instance to fail the batch");
+      } catch (KeeperException.NoNodeException e) {
+        // expected
+      }
+      waitFor(() -> metrics.getWatchEventCounts().getOrDefault(ZKPaths.makePath(Config.CONFIG_PATH, "metrics"), 0L) > 0);
+
+      assertEquals("Expecting 10 writes", 10L, metrics.getOperationCounts().get("setData").longValue());
+      final LatencyHistogram latency = metrics.getLatency("getData");
+      assertEquals("Expecting 10 reads", 10, latency.getCount());
+      assertTrue("Percentile above max", latency.getPercentile(99) <= latency.getMax());
+      assertTrue("Percentiles out of order", latency.getPercentile(50) <= latency.getPercentile(99));
+      assertEquals("Expecting the failed batch", 1L, metrics.getErrorCounts().get("NONODE").longValue());
+      assertTrue("Expecting a hit ratio", metrics.getCacheHitRatios().containsKey("data"));
+      assertEquals("Expecting one connect", 1L, metrics.getConnectionStateCounts().get("CONNECTED").longValue());
+
+      // the same numbers through JMX.
+      final ObjectName name = new ObjectName("poc.curator:type=RecipeMetrics,name=" + ObjectName.quote("testMetrics"));
+      final TabularData counts = (TabularData) ManagementFactory.getPlatformMBeanServer()
+          .getAttribute(name, "OperationCounts");
+      assertEquals("Expecting 10 writes", 10L, counts.get(new Object[]{"setData"}).get("value"));
+      recipes.remove("metrics");
+    } finally {
+      recipes.close();
+    }
+    assertFalse("Expecting the MBean to be gone", ManagementFactory.getPlatformMBeanServer().isRegistered(
+        new ObjectName("poc.curator:type=RecipeMetrics,name=" + ObjectName.quote("testMetrics"))));
+  }
+
+  @Test
+  public void testBinarySerializer() throws Exception {
+    final BinaryInstanceSerializer binary = new BinaryInstanceSerializer();
+    final ServiceInstance<MyService> instance = zooKeeperRecipes.newServiceInstance(MyService.PAYMENT_SERVICE, 4100,
+        new PaymentService());
+    final byte[] bytes = binary.serialize(instance);
+    final ServiceInstance<MyService> decoded = binary.deserialize(bytes);
+    // the services have no equals, their toString covers all fields.
+    assertEquals("Different instance", instance.toString(), decoded.toString());
+    assertTrue("Expecting the payload class", decoded.getPayload() instanceof PaymentService);
+    assertEquals("Different uri", instance.buildUriSpec(), decoded.buildUriSpec());
+    final byte[] json = new JsonInstanceSerializer<>(MyService.class).serialize(instance);
+    assertTrue("Expecting a smaller znode", bytes.length < json.length);
+    assertEquals("Expecting to read JSON too", instance.toString(), binary.deserialize(json).toString());
+
+    // a class with state is not rebuilt from its no-arg constructor, that would drop the written fields.
+    final BeanService bean = new BeanService();
+    bean.setName("BeanService");
+    bean.setUri("/myservices/bean");
+    final ServiceInstance<MyService> beanInstance = ServiceInstance.<MyService>builder().name("BeanService")
+        .address("localhost").port(4102).payload(bean).serviceType(ServiceType.STATIC).build();
+    final ServiceInstance<MyService> beanDecoded = binary.deserialize(binary.serialize(beanInstance));
+    assertEquals("Different payload", ServiceDescriptor.of(bean), beanDecoded.getPayload());
+    assertEquals("Different service type", ServiceType.STATIC, beanDecoded.getServiceType());
+    final BinaryInstanceSerializer beanAware = new BinaryInstanceSerializer(
+        Collections.<Class<? extends MyService>>singletonList(BeanService.class));
+    assertEquals("Expecting the written fields", ServiceDescriptor.of(bean),
+        beanAware.deserialize(beanAware.serialize(beanInstance)).getPayload());
+
+    // instances written by JSON clients are discovered next to binary ones.
+    final ZooKeeperRecipes binaryRecipes = new ZooKeeperRecipes(server.getConnectString(), false, binary);
+    try {
+      binaryRecipes.start();
+      binaryRecipes.registerService("BinaryService", 4100, new OrdersService());
+      zooKeeperRecipes.registerService("BinaryService", 4101, new PaymentService());
+      assertTrue("Expecting 2 service(s)", waitForInstances(binaryRecipes, "BinaryService", 2));
+      final Set<String> names = new HashSet<>();
+      for (ServiceInstance<MyService> found : binaryRecipes.discover("BinaryService")) {
+        names.add(found.getPayload().getName());
+      }
+      assertEquals("Different payloads", new HashSet<>(Arrays.asList(MyService.ORDERS_SERVICE,
+          MyService.PAYMENT_SERVICE)), names);
+      zooKeeperRecipes.unregisterService("BinaryService", 4101);
+    } finally {
+      binaryRecipes.close();
+      removeServicePath("BinaryService");
+    }
+  }
+
+  @Test
+  public void testServiceDescriptor() throws Exception {
+    final ServiceDescriptor descriptor = ServiceDescriptor.builder("DescribedService")
+        .version("v2")
+        .uri("/myservices/described")
+        .env("ENV", "PRODUCTION")
+        .build();
+    assertSame("Expecting the cached string", descriptor.toString(), descriptor.toString());
+    try {
+      descriptor.getEnvironment().put("ENV", "TEST");
+      fail("Expecting an unmodifiable environment");
+    } catch (UnsupportedOperationException e) {
+      // expected
+    }
+    assertEquals("Expecting a value", descriptor, ServiceDescriptor.builder("DescribedService").version("v2")
+        .uri("/myservices/described").env("ENV", "PRODUCTION").build());
+
+    final ServiceInstance<MyService> instance = zooKeeperRecipes.newServiceInstance("DescribedService", 4200, descriptor);
+    final JsonInstanceSerializer<MyService> json = new JsonInstanceSerializer<>(MyService.class);
+    assertEquals("Different JSON payload", descriptor, json.deserialize(json.serialize(instance)).getPayload());
+    final BinaryInstanceSerializer binary = new BinaryInstanceSerializer();
+    assertEquals("Different binary payload", descriptor, binary.deserialize(binary.serialize(instance)).getPayload());
+    // the same bytes as the service classes, so either side of an upgrade reads them.
+    assertEquals("Different environment", new OrdersService().getEnvironment(),
+        binary.deserialize(binary.serialize(zooKeeperRecipes.newServiceInstance(MyService.ORDERS_SERVICE, 4200,
+            ServiceDescriptor.of(new OrdersService())))).getPayload().getEnvironment());
+
+    zooKeeperRecipes.registerService("DescribedService", 4200, descriptor);
+    try {
+      final Collection<ServiceInstance<MyService>> instances = zooKeeperRecipes.discover("DescribedService");
+      assertEquals("Expecting 1 service(s)", 1, instances.size());
+      assertEquals("Different payload", descriptor, instances.iterator().next().getPayload());
+    } finally {
+      zooKeeperRecipes.unregisterService("DescribedService", 4200);
+      removeServicePath("DescribedService");
+    }
+  }
+
+  @Test
+  public void testReRegistration() throws Exception {
+    final CuratorFramework registrar = CuratorFrameworkFactory.newClient(server.getConnectString(), new RetryOneTime(100));
+    final RegistrationManager<MyService> manager = new RegistrationManager<>(registrar, Config.SERVICES_PATH,
+        new JsonInstanceSerializer<>(MyService.class));
+    try {
+      registrar.start();
+      manager.start();
+      final List<ServiceInstance<MyService>> instances = new ArrayList<>();
+      for (int i = 0; i < 3; i++) {
+        instances.add(zooKeeperRecipes.newServiceInstance("ReRegisteredService", 4300 + i, new OrdersService()));
+      }
+      manager.register(instances);
+      final String servicePath = ZKPaths.makePath(Config.SERVICES_PATH, "ReRegisteredService");
+
+      // a node removed behind our back comes back with the next pass, the others are left alone.
+      client.delete().forPath(ZKPaths.makePath(servicePath, instances.get(0).getId()));
+      assertEquals("Expecting 1 missing instance", 1, manager.reRegister().getCount());
+      assertEquals("Expecting nothing missing", 0, manager.reRegister().getCount());
+
+      // the ephemeral nodes go with the session and are back once the client has a new one.
+      KillSession.kill(registrar.getZookeeperClient().getZooKeeper(), server.getConnectString());
+      waitFor(() -> manager.getLastReRegistration() != null);
+      assertEquals("Expecting all instances back", 3, manager.getLastReRegistration().getCount());
+      assertEquals("Expecting 3 service(s)", 3, client.getChildren().forPath(servicePath).size());
+
+      manager.unregister(instances);
+      assertEquals("Expecting 0 service(s)", 0, client.getChildren().forPath(servicePath).size());
+
+      // closing removes what is still registered, persistent instances too.
+      manager.register(ServiceInstance.<MyService>builder().name("ReRegisteredService").port(4310)
+          .payload(new OrdersService()).serviceType(ServiceType.STATIC).build());
+      assertEquals("Expecting 1 service(s)", 1, client.getChildren().forPath(servicePath).size());
+      manager.close();
+      assertEquals("Expecting 0 service(s)", 0, client.getChildren().forPath(servicePath).size());
+    } finally {
+      manager.close();
+      CloseableUtils.closeQuietly(registrar);
+      removeServicePath("ReRegisteredService");
+    }
+  }
+
+  @Test
+  public void testClientPool() throws Exception {
+    final CuratorClientPool pool = new CuratorClientPool(server.getConnectString(),
+        Arrays.asList(server.getConnectString(), server.getConnectString()));
+    final ZooKeeperRecipes pooledRecipes = new ZooKeeperRecipes(pool, false, new JsonInstanceSerializer<>(MyService.class));
+    try {
+      pooledRecipes.start();
+      assertEquals("Expecting 2 read sessions", 2, pool.getReadClients().size());
+      assertFalse("Reads must not go to the primary", pool.getReadClients().contains(pool.getPrimary()));
+
+      // writes go through the primary, reads right after them through a synced read session.
+      for (int i = 0; i < 10; i++) {
+        pooledRecipes.setData("pool/key" + i, "value" + i);
+        assertEquals("Not reading own write", "value" + i, pooledRecipes.getData("pool/key" + i));
+      }
+      pooledRecipes.setData("pool/key0", "async");
+      assertEquals("Not reading own write", "async", pooledRecipes.getDataAsync("pool/key0").get(2, TimeUnit.SECONDS));
+
+      final List<String> changes = new CopyOnWriteArrayList<>();
+      pooledRecipes.addDataWatch("pool/key1", (CacheRecipe.CacheListener) changes::add);
+      pooledRecipes.setData("pool/key1", "watched");
+      waitFor(() -> changes.contains("watched"));
+
+      pooledRecipes.registerService("PooledService", 4400, new OrdersService());
+      assertEquals("Expecting 1 service(s)", 1, pooledRecipes.discover("PooledService").size());
+      pooledRecipes.unregisterService("PooledService", 4400);
+      assertEquals("Expecting 0 service(s)", 0, pooledRecipes.discover("PooledService").size());
+    } finally {
+      pooledRecipes.close();
+      removeServicePath("PooledService");
+      client.delete().deletingChildrenIfNeeded().forPath(ZKPaths.makePath(Config.CONFIG_PATH, "pool"));
+    }
+  }
+
+  @Test
+  public void testSharedClient() throws Exception {
+    // never started explicitly, the first use connects.
+    final ZooKeeperRecipes owner = new ZooKeeperRecipes(server.getConnectString());
+    ZooKeeperRecipes sharing = null;
+    ServiceDiscoveryRecipe detailsRecipe = null;
+    try {
+      final CuratorFramework shared = owner.getCuratorClient();
+      assertEquals("Expecting a started client", CuratorFrameworkState.STARTED, shared.getState());
+
+      sharing = new ZooKeeperRecipes(shared, owner.getServiceDiscovery(), false,
+          new JsonInstanceSerializer<>(MyService.class));
+      detailsRecipe = new ServiceDiscoveryRecipe(shared, null, new JsonInstanceSerializer<>(InstanceDetails.class));
+      assertSame("Expecting the same client", shared, sharing.getCuratorClient());
+
+      owner.registerService("SharedService", 4500, new OrdersService());
+      assertEquals("Expecting 1 service(s)", 1, sharing.discover("SharedService").size());
+      detailsRecipe.registerService("SharedDetailsService", 4501);
+      assertEquals("Expecting 1 service(s)", 1,
+          shared.getChildren().forPath(ZKPaths.makePath(Config.SERVICES_PATH, "SharedDetailsService")).size());
+      detailsRecipe.unregisterService("SharedDetailsService", "4501");
+
+      // closing the recipes that share the client leaves it to its owner.
+      sharing.close();
+      detailsRecipe.close();
+      assertEquals("Expecting the client still started", CuratorFrameworkState.STARTED, shared.getState());
+      assertEquals("Expecting 1 service(s)", 1, owner.discover("SharedService").size());
+      owner.unregisterService("SharedService", 4500);
+    } finally {
+      if (sharing != null) {
+        sharing.close();
+      }
+      if (detailsRecipe != null) {
+        detailsRecipe.close();
+      }
+      owner.close();
+      removeServicePath("SharedService");
+      removeServicePath("SharedDetailsService");
+    }
+  }
+
+  @Test
+  public void testDegradedMode() throws Exception {
+    final TestingServer ownServer = new TestingServer();
+    final CuratorClientPool pool = new CuratorClientPool(ownServer.getConnectString(), Collections.<String>emptyList(),
+        true);
+    final ZooKeeperRecipes recipes = new ZooKeeperRecipes(pool, false, new JsonInstanceSerializer<>(MyService.class));
+    try {
+      recipes.start();
+      final RecipeMetrics metrics = recipes.enableMetrics(null);
+      final DegradedMode degraded = recipes.enableDegradedMode(3, TimeUnit.SECONDS);
+      recipes.setData("degraded/key", "before");
+      assertEquals("Values different", "before", recipes.getData("degraded/key"));
+      recipes.registerService("DegradedService", 4600, ServiceDescriptor.builder("degraded").build());
+      assertEquals("Expecting 1 service(s)", 1, recipes.discover("DegradedService").size());
+      assertEquals("Expecting 1 service(s)", 1, recipes.discoverAll().size());
+      assertEquals("Expecting no stale reads", 0, degraded.getLastKnownReads());
+
+      ownServer.stop();
+      waitFor(() -> !degraded.isWritable());
+
+      // reads are answered right away with what was read last.
+      final long start = System.nanoTime();
+      assertEquals("Values different", "before", recipes.getData("degraded/key"));
+      assertEquals("Values different", "before", recipes.getDataAsync("degraded/key").get(2, TimeUnit.SECONDS));
+      assertEquals("Expecting 1 service(s)", 1, recipes.discover("DegradedService").size());
+      assertEquals("Expecting 1 service(s)", 1, recipes.discoverAll().size());
+      assertTrue("Stale reads must not wait for the connection", System.nanoTime() - start < TimeUnit.SECONDS.toNanos(1));
+      assertEquals("Expecting 4 stale reads", 4, degraded.getLastKnownReads());
+      assertEquals("Expecting 1 stale getData", 1L, (long) metrics.getStaleReadCounts().get("getData"));
+      assertTrue("Expecting staleness", degraded.getStalenessMillis() >= 0);
+
+      // writes wait for quorum and give up after the timeout.
+      try {
+        recipes.upsertData("degraded/key", "during");
+        fail("Expecting the write to fail without quorum");
+      } catch (KeeperException.ConnectionLossException e) {
+        // expected
+      }
+      assertEquals("Expecting 1 rejected write", 1, degraded.getRejectedWrites());
+
+      // a write waiting for quorum goes through once it is back.
+      final CompletableFuture<Void> write = recipes.setDataAsync("degraded/key", "after");
+      assertFalse("Expecting the write to wait", write.isDone());
+      ownServer.restart();
+      write.get(5, TimeUnit.SECONDS);
+      assertEquals("Expecting 2 blocked writes", 2, degraded.getBlockedWrites());
+      assertTrue("Expecting quorum", degraded.isWritable());
+      assertEquals("Expecting no staleness", 0, degraded.getStalenessMillis());
+      assertEquals("Values different", "after", recipes.getData("degraded/key"));
+      recipes.unregisterService("DegradedService", 4600);
+    } finally {
+      recipes.close();
+      CloseableUtils.closeQuietly(ownServer);
+    }
+
+    // only the most recently used keys keep their last answer, and closing fails the writes still waiting.
+    final DegradedMode bounded = new DegradedMode(client, Collections.<CuratorFramework>emptyList(), 1,
+        TimeUnit.MINUTES, 2);
+    bounded.remember(client, "first", "getData", "1");
+    bounded.remember(client, "second", "getData", "2");
+    bounded.remember(client, "third", "getData", "3");
+    assertEquals("Expecting 2 last known keys", 2, bounded.getLastKnownKeys());
+    bounded.stateChanged(client, ConnectionState.LOST);
+    assertNull("Expecting the eldest to be dropped", bounded.lastKnown(client, "first", "getData"));
+    assertEquals("Values different", "3", bounded.lastKnown(client, "third", "getData"));
+    final CompletableFuture<Void> waiting = bounded.whenWritable();
+    assertFalse("Expecting the write to wait", waiting.isDone());
+    bounded.close();
+    try {
+      waiting.get(1, TimeUnit.SECONDS);
+      fail("Expecting the write to fail on close");
+    } catch (ExecutionException e) {
+      assertTrue("Expecting a connection loss", e.getCause() instanceof KeeperException.ConnectionLossException);
+    }
+  }
+
+  @Test
+  public void testSubtreeWalker() throws Exception {
+    final String treePath = ZKPaths.makePath(Config.CONFIG_PATH, "walk");
+    for (int i = 0; i < 3; i++) {
+      for (int j = 0; j < 10; j++) {
+        zooKeeperRecipes.setData("walk/group" + i + "/key" + j, "value" + i + j);
+      }
+    }
+    try {
+      final List<ChildData> all;
+      try (Stream<ChildData> stream = zooKeeperRecipes.walkData("walk", null, 4).stream()) {
+        all = stream.collect(Collectors.toList());
+      }
+      assertEquals("Expecting the root, 3 groups and 30 keys", 34, all.size());
+      assertEquals("Expecting the root first", treePath, all.get(0).getPath());
+      int depth = 0;
+      for (ChildData data : all) {
+        final int nodeDepth = ZKPaths.split(data.getPath()).size();
+        assertTrue("Not breadth-first: " + data.getPath(), nodeDepth >= depth);
+        depth = nodeDepth;
+      }
+      assertEquals("Values different", "value12", all.stream()
+          .filter(data -> data.getPath().equals(treePath + "/group1/key2"))
+          .map(PathWatcherRecipe::decode).findFirst().orElse(null));
+
+      // the prefix keeps out group0 and group2 and everything below them.
+      final Set<String> paths = new HashSet<>();
+      try (Stream<ChildData> stream = zooKeeperRecipes.walkData("walk", "walk/group1/key", 1).stream()) {
+        stream.forEach(data -> paths.add(data.getPath()));
+      }
+      assertEquals("Expecting 10 keys", 10, paths.size());
+      assertTrue("Expecting group1 keys: " + paths, paths.contains(treePath + "/group1/key9"));
+
+      // stop after a few nodes.
+      final SubtreeWalker walker = zooKeeperRecipes.walkData("walk", null, 2);
+      walker.next();
+      walker.next();
+      walker.close();
+      assertFalse("Expecting no more nodes after close", walker.hasNext());
+
+      // an interrupted consumer must not take the walk for done.
+      final SubtreeWalker interrupted = zooKeeperRecipes.walkData("walk", null, 2);
+      Thread.currentThread().interrupt();
+      try {
+        interrupted.hasNext();
+        fail("Expecting the interrupt to be reported");
+      } catch (RuntimeException e) {
+        assertTrue("Expecting the interrupt flag kept", Thread.interrupted());
+      }
+    } finally {
+      client.delete().deletingChildrenIfNeeded().forPath(treePath);
+    }
+  }
+
+  @Test
+  public void testCompression() throws Exception {
+    final StringBuilder json = new StringBuilder("{");
+    for (int i = 0; i < 100; i++) {
+      json.append("\"key").append(i).append("\": \"value").append(i).append("\", ");
+    }
+    final String big = json.append("}").toString();
+    final String bigPath = ZKPaths.makePath(Config.CONFIG_PATH, "compress/big");
+    final ZooKeeperRecipes recipes = new ZooKeeperRecipes(server.getConnectString());
+    try {
+      recipes.enableCompression(64);
+      final List<String> changes = new CopyOnWriteArrayList<>();
+      recipes.setData("compress/big", "plain");
+      recipes.addDataWatch("compress/big", (CacheRecipe.CacheListener) changes::add);
+      waitFor(() -> changes.contains("plain"));
+
+      recipes.setData("compress/big", big);
+      recipes.setData("compress/small", "small");
+      final byte[] stored = client.getData().forPath(bigPath);
+      assertTrue("Expecting a compressed node", PayloadCodec.isCompressed(stored));
+      assertTrue("Expecting less than a quarter: " + stored.length, stored.length < big.length() / 4);
+      assertEquals("Expecting short values as is", "small",
+          new String(client.getData().forPath(ZKPaths.makePath(Config.CONFIG_PATH, "compress/small")),
+              StandardCharsets.UTF_8));
+
+      // readers detect it, whether or not they compress themselves.
+      assertEquals("Values different", big, recipes.getData("compress/big"));
+      assertEquals("Values different", big, zooKeeperRecipes.getData("compress/big"));
+      assertEquals("Values different", big, recipes.getDataAsync("compress/big").get(2, TimeUnit.SECONDS));
+      waitFor(() -> changes.contains(big));
+
+      final byte[] plain = "plain".getBytes(StandardCharsets.UTF_8);
+      assertSame("Expecting plain values as is", plain, PayloadCodec.decompress(plain));
+      try {
+        PayloadCodec.decompress(Arrays.copyOf(stored, stored.length - 4));
+        fail("Expecting a truncated value to be rejected");
+      } catch (IllegalArgumentException e) {
+        // expected
+      }
+      final byte[] inflated = stored.clone();
+      inflated[2] = (byte) 0x7F;
+      try {
+        PayloadCodec.decompress(inflated);
+        fail("Expecting a length beyond the deflate ratio to be rejected");
+      } catch (IllegalArgumentException e) {
+        // expected
+      }
+      inflated[2] = (byte) 0x80;
+      try {
+        PayloadCodec.decompress(inflated);
+        fail("Expecting a negative length to be rejected");
+      } catch (IllegalArgumentException e) {
+        // expected
+      }
+    } finally {
+      recipes.close();
+      client.delete().deletingChildrenIfNeeded().forPath(ZKPaths.makePath(Config.CONFIG_PATH, "compress"));
+    }
+  }
+
+  // Other tests watch the whole services tree, so do not leave empty service nodes behind.
+  private static void removeServicePath(String serviceName) throws Exception {
+    try {
+      client.delete().deletingChildrenIfNeeded().forPath(ZKPaths.makePath(Config.SERVICES_PATH, serviceName));
+    } catch (KeeperException.NoNodeException e) {
+      // already gone
+    }
+  }
+
+  private static List<String> ids(Collection<ServiceInstance<MyService>> instances) {
+    final List<String> ids = new ArrayList<>();
+    for (ServiceInstance<MyService> instance : instances) {
+      ids.add(instance.getId());
+    }
+    return ids;
+  }
+
+  private static boolean waitForInstances(ZooKeeperRecipes recipes, String serviceName, int expected) throws Exception {
+    final long end = System.currentTimeMillis() + 1000;
+    while (System.currentTimeMillis() < end) {
+      if (recipes.discover(serviceName).size() == expected) {
+        return true;
+      }
+      Thread.sleep(10);
+    }
+    return false;
+  }
+
+  // a payload with state, set after construction like a deserialized bean.
+  public static final class BeanService implements MyService {
+
+    private String name;
+    private String uri;
+
+    public void setName(String name) {
+      this.name = name;
+    }
+
+    public void setUri(String uri) {
+      this.uri = uri;
+    }
+
+    @Override
+    public String getName() {
+      return name;
+    }
+
+    @Override
+    public String getVersion() {
+      return "v1";
+    }
+
+    @Override
+    public String getURI() {
+      return uri;
+    }
+
+    @Override
+    public Map<String, String> getEnvironment() {
+      return Collections.emptyMap();
+    }
+  }
 }